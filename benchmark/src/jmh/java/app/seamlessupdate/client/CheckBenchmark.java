@@ -0,0 +1,110 @@
+package app.seamlessupdate.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the update check, fetching the signed index and the changelog. The sequential
+ * variants fetch one after the other, on a new connection per request or over the keep-alive pool,
+ * and the concurrent variant matches what the service does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CheckBenchmark {
+    private static final String INDEX_PATH = UpdateCheck.getIndexPath("device");
+    private static final String CHANGELOG_PATH = "device-stable-changelog";
+
+    @Param({"0", "25"})
+    public long latency;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private ReleaseServer server;
+    private File directory;
+    private HttpCache cache;
+    private HttpCache unpooledCache;
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() throws IOException, GeneralSecurityException {
+        server = new ReleaseServer();
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        server.putIndex("device", "device device\nchannel stable 1234\nbuild 1234 1600000000\n",
+                generator.generateKeyPair().getPrivate());
+        final StringBuilder changelog = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            changelog.append("- change ").append(i).append('\n');
+        }
+        server.put(CHANGELOG_PATH, changelog.toString().getBytes(StandardCharsets.UTF_8));
+        server.setLatency(latency);
+        directory = Files.createTempDirectory("http").toFile();
+        cache = new HttpCache(directory, server::open);
+        unpooledCache = new HttpCache(directory, path -> {
+            final HttpURLConnection connection = server.open(path);
+            connection.setRequestProperty("Connection", "close");
+            return connection;
+        });
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareCache() throws IOException {
+        if (cached) {
+            cache.fetch(INDEX_PATH);
+            cache.fetch(CHANGELOG_PATH);
+        } else {
+            cache.remove(INDEX_PATH);
+            cache.remove(CHANGELOG_PATH);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        server.close();
+        cache.remove(INDEX_PATH);
+        cache.remove(CHANGELOG_PATH);
+        directory.delete();
+    }
+
+    @Benchmark
+    public int sequentialUnpooled() throws IOException {
+        return unpooledCache.fetch(INDEX_PATH).body.length +
+                unpooledCache.fetch(CHANGELOG_PATH).body.length;
+    }
+
+    @Benchmark
+    public int sequential() throws IOException {
+        return cache.fetch(INDEX_PATH).body.length + cache.fetch(CHANGELOG_PATH).body.length;
+    }
+
+    @Benchmark
+    public int concurrent() throws IOException, InterruptedException, ExecutionException {
+        final Future<HttpCache.Response> changelog = executor.submit(() -> cache.fetch(CHANGELOG_PATH));
+        return cache.fetch(INDEX_PATH).body.length + changelog.get().body.length;
+    }
+}
@@ -0,0 +1,96 @@
+package app.seamlessupdate.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original 8 KiB byte[] copy loop with the channel based copy path and the complete
+ * parallel downloader, all fetching from a local stand-in server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloadBenchmark {
+    private static final String PATH = "update.zip";
+
+    @Param({"268435456"})
+    public int size;
+
+    private ReleaseServer server;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] body = new byte[size];
+        new Random(0).nextBytes(body);
+        server = new ReleaseServer();
+        server.put(PATH, body);
+        file = File.createTempFile("update", ".zip");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        Downloader.delete(file);
+    }
+
+    @Benchmark
+    public long byteArrayLoop() throws IOException {
+        final HttpURLConnection connection = server.open(PATH);
+        long downloaded = 0;
+        try (final InputStream input = connection.getInputStream();
+                final OutputStream output = new FileOutputStream(file)) {
+            int bytesRead;
+            final byte[] buffer = new byte[8192];
+            while ((bytesRead = input.read(buffer)) != -1) {
+                output.write(buffer, 0, bytesRead);
+                downloaded += bytesRead;
+            }
+        }
+        return downloaded;
+    }
+
+    @Benchmark
+    public long transferBuffer() throws IOException {
+        final HttpURLConnection connection = server.open(PATH);
+        final Downloader.TransferBuffer buffer = new Downloader.TransferBuffer();
+        long position = 0;
+        try (final ReadableByteChannel input = Channels.newChannel(connection.getInputStream());
+                final FileChannel output = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.fill(input, Long.MAX_VALUE) != -1) {
+                position = buffer.drain(output, position);
+            }
+        }
+        return position;
+    }
+
+    @Benchmark
+    public long downloader() throws IOException {
+        Downloader.delete(file);
+        final Downloader downloader = new Downloader(server::open, file, PATH);
+        downloader.connect(false);
+        downloader.run((downloaded, contentLength) -> {});
+        return downloader.getDownloaded();
+    }
+}
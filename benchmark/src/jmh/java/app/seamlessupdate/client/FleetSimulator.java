@@ -0,0 +1,488 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discrete event simulation of a fleet checking in with the release server.
+ *
+ * Every virtual device runs the client's update check through {@link UpdateCheck} and its own
+ * {@link HttpCache} against a local {@link ReleaseServer}, so signed index, changelog and 304
+ * traffic is real. Time is virtual: the periodic and retry jobs follow {@link CheckSchedule}, requests occupy
+ * the server for a modeled duration, and package downloads are modeled rather than transferred.
+ * Requests arriving while the server is at capacity fail, and the device schedules a retry like
+ * the service does.
+ *
+ * Usage: FleetSimulator [name=value ...], see {@link Config} for the parameters.
+ */
+public final class FleetSimulator {
+    private static final String DEVICE = "device";
+    private static final String CHANNEL = "stable";
+    private static final String[] BUILDS = {"2020010100", "2020020100", "2020030100"};
+    private static final int INITIAL_BUILD = 1;
+    private static final int RELEASED_BUILD = 2;
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    /**
+     * Downloads are modeled, so the package digests in the index are never checked.
+     */
+    private static final String DIGEST = String.join("", Collections.nCopies(PackageVerifier.DIGEST_LENGTH, "00"));
+    /**
+     * The changelog_max_length of the client.
+     */
+    private static final int MAX_CHANGELOG_LENGTH = ChangelogStore.getMaxEncodedLength(65536);
+
+    static final class Config {
+        int devices = 10000;
+        double hours = 24;
+        /**
+         * Window in which the whole fleet boots at the start, as after a mass reboot.
+         */
+        double bootSpreadMinutes = 10;
+        /**
+         * Extra delay JobScheduler adds before running a due job.
+         */
+        double jobSlackMinutes = 2;
+        /**
+         * Poll interval recommended in the metadata, or 0 to leave it to the client.
+         */
+        double intervalMinutes = 0;
+        /**
+         * Whether devices apply their per-device jitter to the poll interval.
+         */
+        int jitter = 1;
+        double releaseAtHours = 6;
+        /**
+         * Devices one release behind, which need a full package instead of an incremental one.
+         */
+        double staleFraction = 0.1;
+        double installFraction = 0.5;
+        double installDelayMinutes = 120;
+        double rebootDelayMinutes = 240;
+        /**
+         * Concurrent connections the server accepts before failing requests.
+         */
+        int capacity = 500;
+        /**
+         * Retry-After sent with the 503 responses of an overloaded server, or -1 for none.
+         */
+        long retryAfterSeconds = -1;
+        long rttMillis = 150;
+        long bandwidth = 2 * 1024 * 1024;
+        long fullSize = 1600L * 1024 * 1024;
+        long incrementalSize = 300L * 1024 * 1024;
+        double bucketMinutes = 15;
+        long seed = 1;
+
+        void set(final String name, final String value) {
+            try {
+                Config.class.getDeclaredField(name).set(this, parse(Config.class.getDeclaredField(name).getType(), value));
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new IllegalArgumentException("unknown parameter " + name);
+            }
+        }
+
+        private static Object parse(final Class<?> type, final String value) {
+            if (type == int.class) {
+                return Integer.parseInt(value);
+            } else if (type == long.class) {
+                return Long.parseLong(value);
+            }
+            return Double.parseDouble(value);
+        }
+    }
+
+    private enum Type {
+        BOOT, PERIODIC, RETRY, INSTALL, DOWNLOADED, RELEASE
+    }
+
+    private static final class Event {
+        final long time;
+        final long sequence;
+        final Type type;
+        final Device device;
+        final int generation;
+
+        Event(final long time, final long sequence, final Type type, final Device device, final int generation) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.device = device;
+            this.generation = generation;
+        }
+    }
+
+    private static final class Device {
+        final HttpCache cache;
+        final long jitterSeed;
+        int build;
+        /**
+         * The build installed by the download in progress, which is the first step of the plan.
+         */
+        int downloadingBuild;
+        long recommendedIntervalMillis;
+        /**
+         * Bumped to drop pending periodic and retry jobs, as cancelling or rescheduling them does.
+         */
+        int periodicGeneration;
+        int retryGeneration;
+        int retryAttempt;
+        boolean installPending;
+        boolean awaitingReboot;
+
+        Device(final HttpCache cache, final long jitterSeed, final int build) {
+            this.cache = cache;
+            this.jitterSeed = jitterSeed;
+            this.build = build;
+        }
+    }
+
+    /**
+     * Requests, bytes and failures within one bucket of virtual time.
+     */
+    private static final class Bucket {
+        long requests;
+        long notModified;
+        long failures;
+        long downloads;
+        int peakConnections;
+    }
+
+    private final Config config;
+    private final Random random;
+    private final ReleaseServer server;
+    private final File directory;
+    private final PriorityQueue<Event> events = new PriorityQueue<>(
+            Comparator.<Event>comparingLong(event -> event.time).thenComparingLong(event -> event.sequence));
+    private final PriorityQueue<Long> connections = new PriorityQueue<>();
+    private final KeyPair key;
+    private final List<PublicKey> trusted;
+    private final Map<Long, Bucket> buckets = new HashMap<>();
+    private long sequence;
+    private int peakConnections;
+    private long peakTime;
+    private long downloadBytes;
+    private long checks;
+    private long failedChecks;
+    private long failedDownloads;
+    private long downloads;
+    private long installs;
+
+    private FleetSimulator(final Config config) throws IOException, GeneralSecurityException {
+        this.config = config;
+        random = new Random(config.seed);
+        server = new ReleaseServer();
+        directory = Files.createTempDirectory("fleet").toFile();
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        key = generator.generateKeyPair();
+        trusted = Collections.singletonList(key.getPublic());
+    }
+
+    public static void main(final String[] args) throws IOException, GeneralSecurityException {
+        final Config config = new Config();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            config.set(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        final FleetSimulator simulator = new FleetSimulator(config);
+        try {
+            simulator.run();
+            simulator.report();
+        } finally {
+            simulator.close();
+        }
+    }
+
+    /**
+     * Publishes a release along with the builds before it, each with a full package and an
+     * incremental one from the previous build.
+     */
+    private void publish(final int build) throws GeneralSecurityException {
+        final String incremental = BUILDS[build];
+        final long interval = TimeUnit.MILLISECONDS.toSeconds(minutes(config.intervalMinutes));
+        final StringBuilder index = new StringBuilder();
+        index.append("device ").append(DEVICE).append('\n');
+        if (interval != 0) {
+            index.append("interval ").append(interval).append('\n');
+        }
+        index.append("channel ").append(CHANNEL).append(' ').append(incremental).append('\n');
+        for (int i = 0; i <= build; i++) {
+            index.append("build ").append(BUILDS[i]).append(' ').append(getBuildDate(i)).append('\n');
+            index.append("package ").append(UpdateCheck.getFullPath(DEVICE, BUILDS[i])).append(" - ")
+                    .append(BUILDS[i]).append(' ').append(config.fullSize).append(' ').append(DIGEST).append('\n');
+            if (i > 0) {
+                index.append("package ").append(UpdateCheck.getIncrementalPath(DEVICE, BUILDS[i - 1], BUILDS[i]))
+                        .append(' ').append(BUILDS[i - 1]).append(' ').append(BUILDS[i]).append(' ')
+                        .append(config.incrementalSize).append(' ').append(DIGEST).append('\n');
+            }
+        }
+        server.putIndex(DEVICE, index.toString(), key.getPrivate());
+        final StringBuilder changelog = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            changelog.append("- ").append(incremental).append(" change ").append(i).append('\n');
+        }
+        server.put(UpdateCheck.getChangelogPath(DEVICE, CHANNEL),
+                changelog.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long getBuildDate(final int build) {
+        return 1577836800L + build * 30L * 24 * 60 * 60;
+    }
+
+    private void schedule(final long time, final Type type, final Device device, final int generation) {
+        events.add(new Event(time, sequence++, type, device, generation));
+    }
+
+    private long minutes(final double minutes) {
+        return (long) (minutes * MINUTE);
+    }
+
+    private long jobSlack() {
+        return (long) (random.nextDouble() * minutes(config.jobSlackMinutes));
+    }
+
+    private long exponential(final double meanMinutes) {
+        return (long) (-Math.log(1 - random.nextDouble()) * minutes(meanMinutes));
+    }
+
+    private void run() throws IOException, GeneralSecurityException {
+        publish(INITIAL_BUILD);
+        for (int i = 0; i < config.devices; i++) {
+            final File cacheDirectory = new File(directory, Integer.toString(i));
+            final int build = random.nextDouble() < config.staleFraction ? INITIAL_BUILD - 1 : INITIAL_BUILD;
+            final long jitterSeed = config.jitter != 0 ? random.nextLong() : 0;
+            final Device device = new Device(new HttpCache(cacheDirectory, server::open), jitterSeed, build);
+            schedule((long) (random.nextDouble() * minutes(config.bootSpreadMinutes)), Type.BOOT, device, 0);
+        }
+        schedule((long) (config.releaseAtHours * HOUR), Type.RELEASE, null, 0);
+
+        final long end = (long) (config.hours * HOUR);
+        for (Event event; (event = events.poll()) != null && event.time < end; ) {
+            final Device device = event.device;
+            switch (event.type) {
+                case RELEASE:
+                    publish(RELEASED_BUILD);
+                    break;
+                case BOOT:
+                    // BootReceiver schedules the periodic job, which first runs as soon as it may
+                    device.awaitingReboot = false;
+                    device.installPending = false;
+                    device.periodicGeneration++;
+                    schedule(event.time + jobSlack(), Type.PERIODIC, device, device.periodicGeneration);
+                    break;
+                case PERIODIC:
+                    if (event.generation != device.periodicGeneration) {
+                        break;
+                    }
+                    check(event.time, device, false);
+                    if (event.generation != device.periodicGeneration) {
+                        // rescheduled with a new recommended interval
+                        break;
+                    }
+                    schedule(event.time + CheckSchedule.getIntervalMillis(device.recommendedIntervalMillis,
+                            device.jitterSeed) + jobSlack(), Type.PERIODIC, device, device.periodicGeneration);
+                    break;
+                case RETRY:
+                    if (event.generation == device.retryGeneration && !device.awaitingReboot) {
+                        check(event.time, device, false);
+                    }
+                    break;
+                case INSTALL:
+                    device.installPending = false;
+                    if (!device.awaitingReboot) {
+                        check(event.time, device, true);
+                    }
+                    break;
+                case DOWNLOADED:
+                    // the installation ends with a reboot notification and the jobs cancelled
+                    installs++;
+                    device.build = device.downloadingBuild;
+                    device.awaitingReboot = true;
+                    device.periodicGeneration++;
+                    device.retryGeneration++;
+                    schedule(event.time + exponential(config.rebootDelayMinutes), Type.BOOT, device, 0);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Runs the service's check for a device, followed by the download if the user asked to install.
+     */
+    private void check(final long time, final Device device, final boolean install)
+            throws IOException, GeneralSecurityException {
+        checks++;
+        final Bucket bucket = getBucket(time);
+        final long requestDuration = config.rttMillis;
+        // the index and changelog requests are sent concurrently
+        if (!connect(time, 2, requestDuration, bucket)) {
+            bucket.failures++;
+            failedChecks++;
+            scheduleRetry(time, device);
+            return;
+        }
+        final long requests = server.requests.get();
+        final long notModified = server.notModified.get();
+        final UpdateCheck.Result result = UpdateCheck.check(device.cache, DEVICE, CHANNEL, getBuildDate(device.build),
+                trusted, MAX_CHANGELOG_LENGTH);
+        if (!install) {
+            device.retryAttempt = 0;
+        }
+        bucket.requests += server.requests.get() - requests;
+        bucket.notModified += server.notModified.get() - notModified;
+        if (result.intervalMillis != device.recommendedIntervalMillis) {
+            // the service reschedules the periodic job, which next runs a full interval later
+            device.recommendedIntervalMillis = result.intervalMillis;
+            device.periodicGeneration++;
+            schedule(time + CheckSchedule.getIntervalMillis(result.intervalMillis, device.jitterSeed) + jobSlack(),
+                    Type.PERIODIC, device, device.periodicGeneration);
+        }
+        if (!result.isNewer()) {
+            return;
+        }
+        if (!install) {
+            // the update available notification, which some users act on
+            if (!device.installPending && random.nextDouble() < config.installFraction) {
+                device.installPending = true;
+                schedule(time + exponential(config.installDelayMinutes), Type.INSTALL, device, 0);
+            }
+            return;
+        }
+
+        final List<PackageIndex.Entry> plan = result.index.plan(BUILDS[device.build], getBuildDate(device.build),
+                result.targetIncremental);
+        if (plan == null) {
+            throw new IOException("no packages from " + BUILDS[device.build] + " in index");
+        }
+        final PackageIndex.Entry step = plan.get(0);
+        final long size = step.size;
+        device.downloadingBuild = Arrays.asList(BUILDS).indexOf(step.targetIncremental);
+        final long start = time + requestDuration;
+        final long duration = config.rttMillis + size * 1000 / config.bandwidth;
+        final Bucket downloadBucket = getBucket(start);
+        downloadBucket.requests += Downloader.CONNECTIONS;
+        if (!connect(start, Downloader.CONNECTIONS, duration, downloadBucket)) {
+            downloadBucket.failures++;
+            failedDownloads++;
+            scheduleRetry(start, device);
+            return;
+        }
+        device.retryAttempt = 0;
+        downloads++;
+        downloadBucket.downloads++;
+        downloadBytes += size;
+        schedule(start + duration, Type.DOWNLOADED, device, 0);
+    }
+
+    /**
+     * Schedules the retry after the server turned the device away, as with a 503 response.
+     */
+    private void scheduleRetry(final long time, final Device device) {
+        final long retryAfter = config.retryAfterSeconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(config.retryAfterSeconds);
+        final long delay = CheckSchedule.getRetryDelayMillis(CheckSchedule.FAILURE_SERVER, device.retryAttempt++,
+                retryAfter, random);
+        device.retryGeneration++;
+        schedule(time + delay + jobSlack(), Type.RETRY, device, device.retryGeneration);
+    }
+
+    /**
+     * Opens count connections to the server for duration, or fails if that exceeds its capacity.
+     */
+    private boolean connect(final long time, final int count, final long duration, final Bucket bucket) {
+        while (!connections.isEmpty() && connections.peek() <= time) {
+            connections.poll();
+        }
+        if (connections.size() + count > config.capacity) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            connections.add(time + duration);
+        }
+        bucket.peakConnections = Math.max(bucket.peakConnections, connections.size());
+        if (connections.size() > peakConnections) {
+            peakConnections = connections.size();
+            peakTime = time;
+        }
+        return true;
+    }
+
+    private Bucket getBucket(final long time) {
+        return buckets.computeIfAbsent(time / minutes(config.bucketMinutes), key -> new Bucket());
+    }
+
+    private void report() {
+        final long bucketMillis = minutes(config.bucketMinutes);
+        System.out.println(String.format(Locale.ROOT, "%-8s %10s %8s %6s %8s %9s", "time", "requests/s",
+                "peak", "304%", "failures", "downloads"));
+        final long last = (long) (config.hours * HOUR) / bucketMillis;
+        for (long i = 0; i <= last; i++) {
+            final Bucket bucket = buckets.get(i);
+            if (bucket == null) {
+                continue;
+            }
+            System.out.println(String.format(Locale.ROOT, "%-8s %10.2f %8d %5.1f%% %8d %9d",
+                    formatTime(i * bucketMillis), bucket.requests * 1000.0 / bucketMillis,
+                    bucket.peakConnections, percent(bucket.notModified, bucket.requests - bucket.downloads * Downloader.CONNECTIONS),
+                    bucket.failures, bucket.downloads));
+        }
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "devices %d over %.1f h", config.devices, config.hours));
+        System.out.println(String.format(Locale.ROOT, "checks %d, failed %d", checks, failedChecks));
+        System.out.println(String.format(Locale.ROOT, "peak concurrency %d connections at %s", peakConnections,
+                formatTime(peakTime)));
+        System.out.println(String.format(Locale.ROOT, "check requests %d, 304 %.1f%%", server.requests.get(),
+                percent(server.notModified.get(), server.requests.get())));
+        System.out.println(String.format(Locale.ROOT, "bytes served: %d index and changelog, %d packages",
+                server.bytesServed.get(), downloadBytes));
+        System.out.println(String.format(Locale.ROOT, "downloads %d, failed %d, installed %d", downloads,
+                failedDownloads, installs));
+    }
+
+    private static double percent(final long part, final long total) {
+        return total == 0 ? 0 : part * 100.0 / total;
+    }
+
+    private static String formatTime(final long millis) {
+        return String.format(Locale.ROOT, "%d:%02d", millis / HOUR, millis % HOUR / MINUTE);
+    }
+
+    private void close() {
+        server.close();
+        final Deque<File> pending = new ArrayDeque<>();
+        pending.push(directory);
+        while (!pending.isEmpty()) {
+            final File file = pending.peek();
+            final File[] children = file.listFiles();
+            if (children != null && children.length > 0) {
+                for (final File child : children) {
+                    pending.push(child);
+                }
+            } else {
+                file.delete();
+                pending.pop();
+            }
+        }
+    }
+}
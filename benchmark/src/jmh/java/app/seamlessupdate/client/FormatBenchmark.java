@@ -0,0 +1,59 @@
+package app.seamlessupdate.client;
+
+import app.seamlessupdate.client.misc.LocaleFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.DateFormat;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The formatting done by StringGenerator for the main screen, which refreshes the downloaded size
+ * on every progress update and the dates whenever the screen is shown.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormatBenchmark {
+    private static final long TIMESTAMP = 1578330000;
+
+    @Param({"en-US", "ru-RU"})
+    public String languageTag;
+
+    private Locale locale;
+    private long bytes;
+
+    @Setup
+    public void setup() {
+        locale = Locale.forLanguageTag(languageTag);
+    }
+
+    @Benchmark
+    public String megabytes() {
+        bytes += 1024 * 1024;
+        return LocaleFormat.formatMegabytes(locale, bytes);
+    }
+
+    @Benchmark
+    public String dateUtc() {
+        return LocaleFormat.formatDate(locale, DateFormat.LONG, TIMESTAMP, true);
+    }
+
+    @Benchmark
+    public String time() {
+        return LocaleFormat.formatTime(locale, TIMESTAMP, false);
+    }
+
+    @Benchmark
+    public String dateTime() {
+        return LocaleFormat.formatDateTime(locale, TIMESTAMP);
+    }
+}
@@ -0,0 +1,202 @@
+package app.seamlessupdate.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reading the metadata, care map and payload properties of a package, with ZipFile and line
+ * splitting as the service used to and with {@link OtaPackage}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackageReaderBenchmark {
+    private static final int MIB = 1024 * 1024;
+
+    /**
+     * Size of the payload in MiB.
+     */
+    @Param({"256", "2048"})
+    public int payloadSize;
+
+    private File file;
+
+    /**
+     * Counts the bytes written, to find the offset of the data following each local header.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("update", ".zip");
+        final byte[] block = new byte[MIB];
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < payloadSize; i++) {
+            crc.update(block);
+        }
+        final StringBuilder careMap = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            careMap.append(i * 4096).append(',').append(i * 4096 + 2048).append(',');
+        }
+        final byte[] properties = ("FILE_HASH=cc7qAGsiHddUsOhD5Hs+KE2jy0dlkHzQjCfXE9IMDQM=\n" +
+                "FILE_SIZE=" + (long) payloadSize * MIB + "\n" +
+                "METADATA_HASH=L5QiBkhQ/8BIOdTfX9Qpzy/rbGsBcmxZDBHYvvGEuBo=\n" +
+                "METADATA_SIZE=100541\n").getBytes(StandardCharsets.UTF_8);
+
+        final CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try (final ZipOutputStream zip = new ZipOutputStream(counter)) {
+            final long payloadOffset = putStored(zip, counter, "payload.bin", block, payloadSize, crc.getValue());
+            final long propertiesOffset = putStored(zip, counter, "payload_properties.txt", properties);
+            final byte[] careMapBytes = careMap.toString().getBytes(StandardCharsets.UTF_8);
+            final long careMapOffset = putStored(zip, counter, "care_map.txt", careMapBytes);
+            final String metadata = "ota-property-files=payload.bin:" + payloadOffset + ":" +
+                    (long) payloadSize * MIB + " \n" +
+                    "ota-required-cache=0\n" +
+                    "ota-streaming-property-files=payload.bin:" + payloadOffset + ":" +
+                    (long) payloadSize * MIB + ",payload_properties.txt:" + propertiesOffset + ":" +
+                    properties.length + ",care_map.txt:" + careMapOffset + ":" + careMapBytes.length + " \n" +
+                    "ota-type=AB\n" +
+                    "post-build=vendor/device/device:10/QQ1A.200105.002/2020010600:user/release-keys\n" +
+                    "post-build-incremental=2020010600\n" +
+                    "post-sdk-level=29\n" +
+                    "post-security-patch-level=2020-01-05\n" +
+                    "post-timestamp=1578330000\n" +
+                    "pre-device=device\n";
+            zip.putNextEntry(new ZipEntry("META-INF/com/android/otacert"));
+            zip.write(new byte[1500]);
+            zip.putNextEntry(new ZipEntry(OtaPackage.METADATA_ENTRY));
+            zip.write(metadata.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+    }
+
+    private static long putStored(final ZipOutputStream zip, final CountingOutputStream counter,
+            final String name, final byte[] contents) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(contents);
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(contents.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        final long offset = counter.count;
+        zip.write(contents);
+        zip.closeEntry();
+        return offset;
+    }
+
+    private static long putStored(final ZipOutputStream zip, final CountingOutputStream counter,
+            final String name, final byte[] block, final int blocks, final long crc) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize((long) block.length * blocks);
+        entry.setCrc(crc);
+        zip.putNextEntry(entry);
+        final long offset = counter.count;
+        for (int i = 0; i < blocks; i++) {
+            zip.write(block);
+        }
+        zip.closeEntry();
+        return offset;
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long zipFile() throws IOException {
+        try (final ZipFile zipFile = new ZipFile(file)) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    zipFile.getInputStream(zipFile.getEntry(OtaPackage.METADATA_ENTRY))));
+            long timestamp = 0;
+            String device = null;
+            String type = null;
+            String[] streamingPropertyFiles = null;
+            for (String line; (line = reader.readLine()) != null; ) {
+                final String[] pair = line.split("=");
+                if ("post-timestamp".equals(pair[0])) {
+                    timestamp = Long.parseLong(pair[1]);
+                } else if ("pre-device".equals(pair[0])) {
+                    device = pair[1];
+                } else if ("ota-type".equals(pair[0])) {
+                    type = pair[1];
+                } else if ("ota-streaming-property-files".equals(pair[0])) {
+                    streamingPropertyFiles = pair[1].trim().split(",");
+                }
+            }
+            long payloadOffset = 0;
+            for (final String streamingPropertyFile : streamingPropertyFiles) {
+                final String[] properties = streamingPropertyFile.split(":");
+                if ("payload.bin".equals(properties[0])) {
+                    payloadOffset = Long.parseLong(properties[1]);
+                }
+            }
+            final byte[] careMap = new byte[64 * 1024];
+            long careMapLength = 0;
+            try (final InputStream input = zipFile.getInputStream(zipFile.getEntry("care_map.txt"))) {
+                for (int bytesRead; (bytesRead = input.read(careMap)) != -1; ) {
+                    careMapLength += bytesRead;
+                }
+            }
+            final BufferedReader propertiesReader = new BufferedReader(new InputStreamReader(
+                    zipFile.getInputStream(zipFile.getEntry("payload_properties.txt"))));
+            return timestamp + payloadOffset + careMapLength + device.length() + type.length() +
+                    propertiesReader.lines().toArray(String[]::new).length;
+        }
+    }
+
+    @Benchmark
+    public long otaPackage() throws IOException {
+        try (final OtaPackage ota = new OtaPackage(file)) {
+            final OtaPackage.Metadata metadata = ota.getMetadata();
+            return metadata.timestamp + metadata.propertyFiles.get("payload.bin")[0] +
+                    ota.read("care_map.txt").length + metadata.device.length() + metadata.type.length() +
+                    new String(ota.read("payload_properties.txt"), StandardCharsets.UTF_8)
+                            .split("\\r?\\n").length;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package app.seamlessupdate.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the release server, serving static files with Range and conditional
+ * request support. A fixed delay before each response stands in for the network round trip.
+ */
+final class ReleaseServer implements AutoCloseable {
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    static {
+        // headers and body are written separately, which stalls on delayed ACKs over keep-alive
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Map<String, String> etags = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final HttpServer server;
+    private volatile long latencyMillis;
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong notModified = new AtomicLong();
+    final AtomicLong bytesServed = new AtomicLong();
+
+    ReleaseServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    void put(final String path, final byte[] body) {
+        etags.put(path, "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"");
+        files.put(path, body);
+    }
+
+    /**
+     * Publishes the index of a device, signed the way {@link PackageIndex} expects.
+     */
+    void putIndex(final String device, final String index, final PrivateKey key) throws GeneralSecurityException {
+        final byte[] body = index.getBytes(StandardCharsets.UTF_8);
+        final Signature signature = Signature.getInstance(PackageIndex.getSignatureAlgorithm(key));
+        signature.initSign(key);
+        signature.update(body);
+        put(UpdateCheck.getIndexPath(device), (index + "signature " +
+                Base64.getEncoder().encodeToString(signature.sign()) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    void setLatency(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    HttpURLConnection open(final String path) throws IOException {
+        return (HttpURLConnection) new URL(getUrl() + path).openConnection();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            requests.incrementAndGet();
+            final String path = exchange.getRequestURI().getPath().substring(1);
+            final byte[] body = files.get(path);
+            if (body == null) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                return;
+            }
+            final String etag = etags.get(path);
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                return;
+            }
+            long start = 0;
+            long end = body.length - 1;
+            int responseCode = HttpURLConnection.HTTP_OK;
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                final String[] bounds = range.substring(6).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                if (start >= body.length) {
+                    exchange.sendResponseHeaders(HTTP_RANGE_NOT_SATISFIABLE, -1);
+                    return;
+                }
+                responseCode = HttpURLConnection.HTTP_PARTIAL;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + body.length);
+            }
+            exchange.sendResponseHeaders(responseCode, end - start + 1);
+            bytesServed.addAndGet(end - start + 1);
+            try (final OutputStream output = exchange.getResponseBody()) {
+                output.write(body, (int) start, (int) (end - start + 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class ChunkMapTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("package.zip");
+    }
+
+    private static byte[] hash(final int chunk) {
+        final byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) chunk);
+        return hash;
+    }
+
+    private byte[] saveMap() throws IOException {
+        final ChunkMap map = new ChunkMap("package.zip", 10 * 1000 + 1, 1000);
+        map.setComplete(0, hash(0));
+        map.setComplete(1, hash(1));
+        map.snapshot();
+        map.setComplete(10, hash(10));
+        map.setAllocated();
+        map.save(file);
+        return Files.readAllBytes(ChunkMap.getFile(file).toPath());
+    }
+
+    private void writeMap(final byte[] bytes) throws IOException {
+        Files.write(ChunkMap.getFile(file).toPath(), bytes);
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        saveMap();
+        final ChunkMap map = ChunkMap.load(file);
+        assertNotNull(map);
+        assertEquals("package.zip", map.getPath());
+        assertEquals(10 * 1000 + 1, map.getContentLength());
+        assertEquals(11, map.getChunkCount());
+        assertTrue(map.isAllocated());
+        assertTrue(map.isComplete(0));
+        assertTrue(map.isComplete(10));
+        assertFalse(map.isComplete(2));
+        assertEquals(2000, map.getContiguousLength());
+        assertEquals(2001, map.getCompletedBytes());
+        // chunks completed since the last snapshot are saved as recent as well
+        assertTrue(map.isRecent(1));
+        assertTrue(map.isRecent(10));
+        assertFalse(map.isRecent(2));
+    }
+
+    @Test
+    public void rejectsMissingMap() {
+        assertNull(ChunkMap.load(file));
+    }
+
+    @Test
+    public void rejectsTruncatedMap() throws IOException {
+        final byte[] bytes = saveMap();
+        for (int length = 0; length < bytes.length; length++) {
+            writeMap(Arrays.copyOf(bytes, length));
+            assertNull("loaded a map truncated to " + length + " bytes", ChunkMap.load(file));
+        }
+    }
+
+    @Test
+    public void rejectsOtherVersion() throws IOException {
+        final byte[] bytes = saveMap();
+        bytes[3]++;
+        writeMap(bytes);
+        assertNull(ChunkMap.load(file));
+    }
+
+    private void writeHeader(final long contentLength, final int chunkSize) throws IOException {
+        final byte[] version = Arrays.copyOf(saveMap(), 4);
+        try (final DataOutputStream output = new DataOutputStream(
+                new FileOutputStream(ChunkMap.getFile(file)))) {
+            output.write(version);
+            output.writeUTF("package.zip");
+            output.writeLong(contentLength);
+            output.writeInt(chunkSize);
+            output.writeBoolean(false);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidGeometry() throws IOException {
+        writeHeader(-1, 1000);
+        assertNull(ChunkMap.load(file));
+        writeHeader(1000, 0);
+        assertNull(ChunkMap.load(file));
+        writeHeader(1000, -1);
+        assertNull(ChunkMap.load(file));
+        // more chunks than hashes fit in an array
+        writeHeader(Long.MAX_VALUE, 1);
+        assertNull(ChunkMap.load(file));
+        writeHeader(Integer.MAX_VALUE, 1);
+        assertNull(ChunkMap.load(file));
+    }
+
+    @Test
+    public void keepsHashesOfCompleteChunks() throws IOException {
+        final byte[] bytes = saveMap();
+        final byte[] hashes = Arrays.copyOfRange(bytes, bytes.length - 11 * 32, bytes.length);
+        assertArrayEquals(hash(10), Arrays.copyOfRange(hashes, 10 * 32, 11 * 32));
+    }
+}
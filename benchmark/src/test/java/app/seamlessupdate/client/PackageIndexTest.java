@@ -0,0 +1,138 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+public class PackageIndexTest {
+    private static final String SHA256 = String.join("", Collections.nCopies(PackageVerifier.DIGEST_LENGTH, "ab"));
+    private static final String INDEX = "device walleye\n" +
+            "channel stable 2020.05.01\n" +
+            "build 2020.05.01 1588291200\n" +
+            "package walleye-ota_update-2020.05.01.zip - 2020.05.01 1000 " + SHA256 + "\n";
+
+    private static KeyPair ecKey;
+    private static KeyPair rsaKey;
+
+    @BeforeClass
+    public static void generateKeys() throws GeneralSecurityException {
+        final KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(256);
+        ecKey = ec.generateKeyPair();
+        final KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        rsaKey = rsa.generateKeyPair();
+    }
+
+    private static byte[] getSignature(final String index, final KeyPair key) throws GeneralSecurityException {
+        final Signature signature = Signature.getInstance(PackageIndex.getSignatureAlgorithm(key.getPrivate()));
+        signature.initSign(key.getPrivate());
+        signature.update(index.getBytes(StandardCharsets.UTF_8));
+        return signature.sign();
+    }
+
+    private static byte[] withSignature(final String index, final byte[] signature) {
+        return (index + "signature " + Base64.getEncoder().encodeToString(signature) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] sign(final String index, final KeyPair key) throws GeneralSecurityException {
+        return withSignature(index, getSignature(index, key));
+    }
+
+    private static void assertRejected(final byte[] body, final List<PublicKey> trusted) throws IOException {
+        try {
+            PackageIndex.parse(body, trusted);
+            fail("accepted an index that is not signed by a trusted key");
+        } catch (SignatureException e) {
+            // expected
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void parsesSignedIndex() throws Exception {
+        final PackageIndex index = PackageIndex.parse(sign(INDEX, ecKey),
+                Arrays.asList(rsaKey.getPublic(), ecKey.getPublic()));
+        assertEquals("2020.05.01", index.getRelease("stable"));
+        assertEquals(1588291200, index.getBuildDate("2020.05.01"));
+    }
+
+    @Test
+    public void rejectsUnsignedIndex() throws Exception {
+        final List<PublicKey> trusted = Collections.singletonList(ecKey.getPublic());
+        assertRejected(new byte[0], trusted);
+        assertRejected("\n".getBytes(StandardCharsets.UTF_8), trusted);
+        assertRejected(INDEX.getBytes(StandardCharsets.UTF_8), trusted);
+        assertRejected("signature".getBytes(StandardCharsets.UTF_8), trusted);
+    }
+
+    @Test
+    public void rejectsMalformedSignature() throws Exception {
+        final List<PublicKey> trusted = Arrays.asList(rsaKey.getPublic(), ecKey.getPublic());
+        assertRejected((INDEX + "signature \n").getBytes(StandardCharsets.UTF_8), trusted);
+        assertRejected((INDEX + "signature !!!!\n").getBytes(StandardCharsets.UTF_8), trusted);
+        assertRejected((INDEX + "signature AAAA\n").getBytes(StandardCharsets.UTF_8), trusted);
+
+        for (final KeyPair key : new KeyPair[] {rsaKey, ecKey}) {
+            final byte[] signature = getSignature(INDEX, key);
+            assertRejected(withSignature(INDEX, Arrays.copyOf(signature, signature.length / 2)), trusted);
+            assertRejected(withSignature(INDEX, Arrays.copyOf(signature, signature.length + 1)), trusted);
+        }
+    }
+
+    @Test
+    public void rejectsTamperedIndex() throws Exception {
+        final byte[] signed = sign(INDEX, ecKey);
+        signed[7] ^= 1;
+        assertRejected(signed, Collections.singletonList(ecKey.getPublic()));
+    }
+
+    @Test
+    public void rejectsUntrustedKey() throws Exception {
+        assertRejected(sign(INDEX, rsaKey), Collections.singletonList(ecKey.getPublic()));
+        assertRejected(sign(INDEX, ecKey), Collections.emptyList());
+    }
+
+    @Test
+    public void rejectsMalformedIndex() throws Exception {
+        final List<PublicKey> trusted = Collections.singletonList(ecKey.getPublic());
+        for (final String index : new String[] {
+            // no device
+            "channel stable 2020.05.01\n",
+            // a digest of the wrong length
+            "device walleye\nbuild 2020.05.01 1\npackage a.zip - 2020.05.01 1000 abab\n",
+            // a digest that is not hexadecimal
+            "device walleye\nbuild 2020.05.01 1\npackage a.zip - 2020.05.01 1000 " + SHA256.replace('a', 'g') + "\n",
+            // a package for a build that is not listed
+            "device walleye\npackage a.zip - 2020.05.01 1000 " + SHA256 + "\n",
+            // numbers that do not parse
+            "device walleye\nbuild 2020.05.01 x\n",
+            "device walleye\ninterval 1.5\n",
+            "device walleye\nbuild 2020.05.01 1\npackage a.zip - 2020.05.01 -x " + SHA256 + "\n"
+        }) {
+            try {
+                PackageIndex.parse(sign(index, ecKey), trusted);
+                fail("accepted a malformed index: " + index);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
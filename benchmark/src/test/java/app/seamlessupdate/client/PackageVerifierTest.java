@@ -0,0 +1,215 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+import java.util.Collections;
+import java.util.Random;
+
+public class PackageVerifierTest {
+    private static final byte[] OID_SIGNED_DATA = {
+        0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x02
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns a package with the given signature block in its zip comment, followed by the footer
+     * pointing at it.
+     */
+    private static byte[] newPackage(final byte[] content, final byte[] signature) {
+        final int commentSize = signature.length + 6;
+        final ByteBuffer eocd = ByteBuffer.allocate(22 + commentSize).order(ByteOrder.LITTLE_ENDIAN);
+        eocd.putInt(0x06054b50).position(20);
+        eocd.putShort((short) commentSize).put(signature);
+        eocd.putShort((short) commentSize).putShort((short) 0xffff).putShort((short) commentSize);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(content, 0, content.length);
+        output.write(eocd.array(), 0, eocd.capacity());
+        return output.toByteArray();
+    }
+
+    private static byte[] der(final int tag, final byte[]... parts) {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            content.write(part, 0, part.length);
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(tag);
+        if (content.size() < 0x80) {
+            output.write(content.size());
+        } else {
+            output.write(0x82);
+            output.write(content.size() >> 8);
+            output.write(content.size());
+        }
+        output.write(content.toByteArray(), 0, content.size());
+        return output.toByteArray();
+    }
+
+    private PackageVerifier newVerifier(final byte[] bytes) throws IOException {
+        final File file = folder.newFile();
+        Files.write(file.toPath(), bytes);
+        return new PackageVerifier(file);
+    }
+
+    /**
+     * Asserts that the package is rejected with a checked exception. Malformed certificates come
+     * from the platform parser as other kinds of GeneralSecurityException.
+     */
+    private void assertRejected(final byte[] bytes) throws IOException {
+        try {
+            newVerifier(bytes).verify(Collections.emptyList());
+            fail("accepted a malformed package");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    private static byte[] random(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void rejectsShortPackage() throws Exception {
+        assertRejected(new byte[0]);
+        assertRejected(new byte[27]);
+    }
+
+    @Test
+    public void rejectsMissingFooter() throws Exception {
+        final byte[] bytes = newPackage(random(1000), new byte[16]);
+        bytes[bytes.length - 3] = 0;
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void rejectsFooterOutsideComment() throws Exception {
+        final byte[] bytes = newPackage(random(1000), new byte[16]);
+        // signature start past the comment
+        bytes[bytes.length - 6] = (byte) 0xff;
+        assertRejected(bytes);
+        // signature start within the footer
+        bytes[bytes.length - 6] = 5;
+        assertRejected(bytes);
+        // comment longer than the file
+        bytes[bytes.length - 6] = 22;
+        bytes[bytes.length - 1] = 0x7f;
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void rejectsMisplacedEocd() throws Exception {
+        final byte[] bytes = newPackage(random(1000), new byte[16]);
+        // an EOCD marker inside the comment
+        bytes[bytes.length - 20] = 0x50;
+        bytes[bytes.length - 19] = 0x4b;
+        bytes[bytes.length - 18] = 0x05;
+        bytes[bytes.length - 17] = 0x06;
+        assertRejected(bytes);
+        // no EOCD where the comment length says it starts
+        final byte[] shifted = newPackage(random(1000), new byte[16]);
+        shifted[shifted.length - 1 - 16 - 6 - 22 + 1] = 0;
+        assertRejected(shifted);
+    }
+
+    @Test
+    public void rejectsMalformedSignatureBlock() throws Exception {
+        final byte[] content = random(1000);
+        // not a sequence
+        assertRejected(newPackage(content, der(0x04, new byte[8])));
+        // empty sequence
+        assertRejected(newPackage(content, der(0x30)));
+        // another content type
+        assertRejected(newPackage(content, der(0x30, der(0x06, new byte[] {0x2a, 0x03}))));
+        // empty object identifier
+        assertRejected(newPackage(content, der(0x30, der(0x06))));
+        // signed data without its content
+        assertRejected(newPackage(content, der(0x30, OID_SIGNED_DATA)));
+        // signed data without certificates
+        assertRejected(newPackage(content, der(0x30, OID_SIGNED_DATA, der(0xa0, der(0x30,
+                der(0x02, new byte[] {1}), der(0x31), der(0x30), der(0x31, der(0x30)))))));
+        // certificates that are not sets of elements
+        assertRejected(newPackage(content, der(0x30, OID_SIGNED_DATA, der(0xa0, der(0x30,
+                der(0x02, new byte[] {1}), der(0x31), der(0x30), der(0xa0, new byte[] {0x30}))))));
+        // a certificate that does not parse
+        assertRejected(newPackage(content, der(0x30, OID_SIGNED_DATA, der(0xa0, der(0x30,
+                der(0x02, new byte[] {1}), der(0x31), der(0x30), der(0xa0, der(0x30, new byte[8])))))));
+    }
+
+    @Test
+    public void rejectsTruncatedSignatureBlock() throws Exception {
+        final byte[] block = der(0x30, OID_SIGNED_DATA, der(0xa0, der(0x30, der(0x02, new byte[] {1}),
+                der(0x31), der(0x30), der(0xa0, der(0x30, new byte[200])))));
+        for (int length = 0; length < block.length; length++) {
+            final byte[] truncated = new byte[length];
+            System.arraycopy(block, 0, truncated, 0, length);
+            assertRejected(newPackage(random(100), truncated));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidLengths() throws Exception {
+        final byte[] content = random(1000);
+        // indefinite length
+        assertRejected(newPackage(content, new byte[] {0x30, (byte) 0x80, 0, 0}));
+        // length of more than three bytes
+        assertRejected(newPackage(content, new byte[] {0x30, (byte) 0x84, 0, 0, 0, 1, 0}));
+        // length past the block
+        assertRejected(newPackage(content, new byte[] {0x30, (byte) 0x83, (byte) 0xff, (byte) 0xff, (byte) 0xff}));
+        // length bytes past the block
+        assertRejected(newPackage(content, new byte[] {0x30, (byte) 0x82}));
+    }
+
+    @Test
+    public void digestsWholeFile() throws Exception {
+        final byte[] bytes = newPackage(random(300 * 1024), new byte[16]);
+        final byte[] expected = MessageDigest.getInstance("SHA-256").digest(bytes);
+
+        final PackageVerifier fresh = newVerifier(bytes);
+        try {
+            fresh.verify(Collections.emptyList());
+        } catch (SignatureException e) {
+            // the file digest is known before the signature block is parsed
+        }
+        assertArrayEquals(expected, fresh.getFileDigest());
+
+        // continuing from a digest computed up to the limit, as during a download
+        final File file = folder.newFile();
+        Files.write(file.toPath(), bytes);
+        final PackageVerifier resumed = new PackageVerifier(file);
+        final long limit = PackageVerifier.getLimit(bytes.length);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(4096);
+            while (resumed.getPosition() < limit) {
+                resumed.update(channel, limit, buffer);
+            }
+        }
+        assertEquals(limit, resumed.getPosition());
+        try {
+            resumed.verify(Collections.emptyList());
+        } catch (SignatureException e) {
+            // as above
+        }
+        assertArrayEquals(expected, resumed.getFileDigest());
+    }
+}
@@ -0,0 +1,89 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterTest {
+    private static final long RATE = 4 * 1024 * 1024;
+    private static final long BURST_MILLIS = 100;
+    private static final double TOLERANCE = 0.05;
+
+    /**
+     * Returns the seconds taken to acquire bytes in reads of the size the limiter asks for.
+     */
+    private static double transfer(final RateLimiter limiter, final long bytes) throws Exception {
+        final long start = System.nanoTime();
+        for (long remaining = bytes; remaining > 0; ) {
+            final long read = limiter.limit(remaining);
+            limiter.acquire(read);
+            remaining -= read;
+        }
+        return (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static void assertRate(final long bytes, final double seconds) {
+        // the burst allowance is free, as the bucket starts out full
+        final double expected = (double) bytes / RATE - BURST_MILLIS / 1000.0;
+        assertEquals(expected, seconds, expected * TOLERANCE);
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        final RateLimiter limiter = new RateLimiter(0);
+        assertEquals(Long.MAX_VALUE, limiter.limit(Long.MAX_VALUE));
+        assertTrue(transfer(limiter, 1L << 40) < 1);
+    }
+
+    @Test
+    public void quantum() {
+        assertEquals(RATE / 10, new RateLimiter(RATE).limit(Long.MAX_VALUE));
+        assertEquals(10, new RateLimiter(RATE).limit(10));
+        // low rates still read a few kilobytes at once
+        assertEquals(4 * 1024, new RateLimiter(1).limit(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void holdsRate() throws Exception {
+        final long bytes = 2 * RATE;
+        assertRate(bytes, transfer(new RateLimiter(RATE), bytes));
+    }
+
+    @Test
+    public void holdsCombinedRate() throws Exception {
+        final RateLimiter limiter = new RateLimiter(RATE);
+        final long bytes = 2 * RATE;
+        final List<Thread> threads = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < Downloader.CONNECTIONS; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    transfer(limiter, bytes / Downloader.CONNECTIONS);
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertRate(bytes, (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void limitsBurstAfterIdling() throws Exception {
+        final RateLimiter limiter = new RateLimiter(RATE);
+        transfer(limiter, RATE / 2);
+        Thread.sleep(500);
+        // idle time is credited for no more than the burst allowance
+        final long bytes = RATE;
+        assertRate(bytes, transfer(limiter, bytes));
+    }
+}
@@ -0,0 +1,173 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class UpdateJournalTest {
+    private static final UpdateJournal.State DOWNLOADING = new UpdateJournal.State(
+            UpdateJournal.Phase.DOWNLOADING, "2020.05.01", 1588291200, "walleye-ota_update-2020.05.01.zip");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "journal");
+    }
+
+    private static void assertState(final UpdateJournal.State expected, final UpdateJournal.State actual) {
+        assertTrue("expected " + expected + " but was " + actual, expected.sameAs(actual));
+    }
+
+    /**
+     * Returns a journal that went through a check to start downloading.
+     */
+    private UpdateJournal startDownload() throws IOException {
+        final UpdateJournal journal = new UpdateJournal(file);
+        journal.beginCheck();
+        journal.moveTo(DOWNLOADING);
+        return journal;
+    }
+
+    private UpdateJournal.State reload() {
+        return new UpdateJournal(file).getState();
+    }
+
+    @Test
+    public void startsIdle() {
+        assertState(UpdateJournal.State.IDLE, reload());
+    }
+
+    @Test
+    public void replaysTransitions() throws IOException {
+        final UpdateJournal journal = startDownload();
+        journal.moveTo(UpdateJournal.Phase.VERIFYING);
+        journal.moveTo(UpdateJournal.Phase.APPLYING);
+        journal.moveTo(journal.getState().withApplyFailure());
+        final UpdateJournal.State state = reload();
+        assertState(DOWNLOADING.withApplyFailure(), state);
+        assertEquals(1, state.applyFailures);
+    }
+
+    @Test
+    public void compactsLongJournal() throws IOException {
+        final UpdateJournal journal = startDownload();
+        for (int i = 0; i < 100; i++) {
+            journal.moveTo(UpdateJournal.Phase.VERIFYING);
+            journal.moveTo(UpdateJournal.Phase.DOWNLOADING);
+        }
+        assertState(DOWNLOADING, reload());
+        assertTrue(file.length() < 100 * 64);
+    }
+
+    @Test
+    public void doesNotJournalChecking() throws IOException {
+        final UpdateJournal journal = startDownload();
+        journal.beginCheck();
+        assertEquals(UpdateJournal.Phase.CHECKING, journal.getState().phase);
+        assertState(DOWNLOADING, reload());
+    }
+
+    @Test
+    public void rejectsInvalidTransition() throws IOException {
+        final UpdateJournal journal = startDownload();
+        try {
+            journal.moveTo(UpdateJournal.Phase.AWAITING_REBOOT);
+            fail("moved from downloading to awaiting a reboot");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertState(DOWNLOADING, reload());
+    }
+
+    @Test
+    public void dropsTornRecord() throws IOException {
+        final UpdateJournal journal = startDownload();
+        final long length = file.length();
+        journal.moveTo(UpdateJournal.Phase.VERIFYING);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        for (int end = (int) length; end < bytes.length; end++) {
+            Files.write(file.toPath(), Arrays.copyOf(bytes, end));
+            assertState(DOWNLOADING, reload());
+        }
+        // a journal torn within its header starts over
+        for (int end = 0; end < 4; end++) {
+            Files.write(file.toPath(), Arrays.copyOf(bytes, end));
+            assertState(UpdateJournal.State.IDLE, reload());
+        }
+    }
+
+    @Test
+    public void dropsCorruptRecord() throws IOException {
+        final UpdateJournal journal = startDownload();
+        final int length = (int) file.length();
+        journal.moveTo(UpdateJournal.Phase.VERIFYING);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        for (int i = length; i < bytes.length; i++) {
+            final byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x10;
+            Files.write(file.toPath(), corrupt);
+            final UpdateJournal.State state = reload();
+            assertTrue("replayed corrupt byte " + i + " as " + state,
+                    state.sameAs(DOWNLOADING) || state.sameAs(DOWNLOADING.withPhase(UpdateJournal.Phase.VERIFYING)));
+        }
+        // the journal is rewritten rather than appended to after a bad tail
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file.toPath(), bytes);
+        final UpdateJournal rewritten = new UpdateJournal(file);
+        rewritten.moveTo(UpdateJournal.Phase.VERIFYING);
+        assertState(DOWNLOADING.withPhase(UpdateJournal.Phase.VERIFYING), reload());
+    }
+
+    @Test
+    public void rejectsInvalidPhase() throws IOException {
+        final byte[] record = {(byte) UpdateJournal.Phase.values().length, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        Files.write(file.toPath(), journalOf(record));
+        assertState(UpdateJournal.State.IDLE, reload());
+    }
+
+    @Test
+    public void readsRecordWithoutApplyFailures() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(UpdateJournal.Phase.APPLYING.ordinal());
+        output.writeUTF(DOWNLOADING.targetIncremental);
+        output.writeLong(DOWNLOADING.targetBuildDate);
+        output.writeUTF(DOWNLOADING.downloadFile);
+        Files.write(file.toPath(), journalOf(bytes.toByteArray()));
+        final UpdateJournal.State state = reload();
+        assertState(DOWNLOADING.withPhase(UpdateJournal.Phase.APPLYING), state);
+        assertEquals(0, state.applyFailures);
+    }
+
+    /**
+     * Returns a journal holding a single record with the given content.
+     */
+    private static byte[] journalOf(final byte[] record) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        output.writeInt(1);
+        output.writeShort(record.length);
+        output.write(record);
+        output.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,160 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipDirectoryTest {
+    private static ZipDirectory.Source newSource(final byte[] bytes) {
+        return (final ByteBuffer buffer, final long position) -> {
+            if (position < 0 || position + buffer.remaining() > bytes.length) {
+                throw new EOFException("unexpected end of zip file");
+            }
+            buffer.put(bytes, (int) position, buffer.remaining());
+        };
+    }
+
+    /**
+     * Asserts that reading the directory and the entry named "a" fails with an IOException rather
+     * than a runtime exception from an out of bounds offset or length.
+     */
+    private static void assertRejected(final byte[] bytes) {
+        try {
+            final ZipDirectory directory = ZipDirectory.read(newSource(bytes), bytes.length);
+            final ZipDirectory.Entry entry = directory.getEntry("a");
+            if (entry != null) {
+                directory.read(entry);
+            }
+            fail("accepted a malformed zip file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] eocd(final int count, final long directoryLength, final long directoryOffset) {
+        final ByteBuffer buffer = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) count)
+                .putShort((short) count).putInt((int) directoryLength).putInt((int) directoryOffset)
+                .putShort((short) 0);
+        return buffer.array();
+    }
+
+    private static ByteBuffer zip64Locator(final long offset) {
+        final ByteBuffer buffer = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.putInt(0x07064b50).putInt(0).putLong(offset).putInt(1);
+    }
+
+    private static ByteBuffer zip64Eocd(final long count, final long directoryLength, final long directoryOffset) {
+        final ByteBuffer buffer = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0)
+                .putInt(0).putLong(count).putLong(count).putLong(directoryLength).putLong(directoryOffset);
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            output.write(part, 0, part.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] zip64Tail(final ByteBuffer zip64Eocd, final long locatorOffset) {
+        return concat(zip64Eocd.array(), zip64Locator(locatorOffset).array(), eocd(0xffff, 0xffffffffL, 0xffffffffL));
+    }
+
+    @Test
+    public void readsEntries() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+        try (final ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("a"));
+            zip.write(content);
+            zip.putNextEntry(new ZipEntry("b"));
+            zip.write(new byte[1000]);
+        }
+        final byte[] file = bytes.toByteArray();
+        final ZipDirectory directory = ZipDirectory.read(newSource(file), file.length);
+        assertArrayEquals(content, directory.read(directory.getEntry("a")));
+        assertNull(directory.getEntry("c"));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("a"));
+            zip.write(new byte[100]);
+        }
+        final byte[] file = bytes.toByteArray();
+        for (int length = 0; length < file.length; length++) {
+            final byte[] truncated = new byte[length];
+            System.arraycopy(file, 0, truncated, 0, length);
+            assertRejected(truncated);
+        }
+    }
+
+    @Test
+    public void rejectsMissingZip64Records() {
+        // no locator before the end of central directory
+        assertRejected(eocd(0xffff, 0xffffffffL, 0xffffffffL));
+        assertRejected(concat(new byte[100], eocd(0xffff, 0xffffffffL, 0xffffffffL)));
+        // a locator pointing at something else
+        assertRejected(concat(new byte[100], zip64Locator(0).array(), eocd(0xffff, 0xffffffffL, 0xffffffffL)));
+    }
+
+    @Test
+    public void rejectsZip64LocatorOutOfBounds() {
+        for (final long offset : new long[] {-5, Long.MIN_VALUE, 1 << 20, Long.MAX_VALUE, 100 - 55}) {
+            assertRejected(concat(new byte[100], zip64Locator(offset).array(),
+                    eocd(0xffff, 0xffffffffL, 0xffffffffL)));
+        }
+    }
+
+    @Test
+    public void rejectsZip64DirectoryOutOfBounds() {
+        assertRejected(zip64Tail(zip64Eocd(1, -10, 0), 0));
+        assertRejected(zip64Tail(zip64Eocd(1, 1, -1), 0));
+        assertRejected(zip64Tail(zip64Eocd(1, Long.MAX_VALUE, 1), 0));
+        assertRejected(zip64Tail(zip64Eocd(1, 1, Long.MAX_VALUE), 0));
+        assertRejected(zip64Tail(zip64Eocd(1, 1 << 30, 0), 0));
+        // more entries than the directory holds
+        assertRejected(zip64Tail(zip64Eocd(Long.MAX_VALUE, 0, 0), 0));
+    }
+
+    @Test
+    public void rejectsInvalidZip64ExtraField() {
+        for (final long value : new long[] {Long.MIN_VALUE, -1}) {
+            for (final int extraLength : new int[] {0, 4, 12}) {
+                final ByteBuffer header = ByteBuffer.allocate(46 + 1 + 4 + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                        .putShort((short) 0).putInt(0).putInt(0).putInt(0xffffffff).putInt(0xffffffff)
+                        .putShort((short) 1).putShort((short) (4 + extraLength)).putShort((short) 0)
+                        .putShort((short) 0).putShort((short) 0).putInt(0).putInt(0);
+                header.put((byte) 'a').putShort((short) 1).putShort((short) extraLength);
+                if (extraLength >= 8) {
+                    header.putLong(value);
+                }
+                assertRejected(concat(new byte[30], header.array(), eocd(1, header.capacity(), 30)));
+            }
+        }
+        // an extra field longer than the space left for it
+        final ByteBuffer header = ByteBuffer.allocate(46 + 1 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                .putShort((short) 0).putInt(0).putInt(0).putInt(0xffffffff).putInt(0xffffffff)
+                .putShort((short) 1).putShort((short) 4).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0).putInt(0);
+        header.put((byte) 'a').putShort((short) 1).putShort((short) 100);
+        assertRejected(concat(new byte[30], header.array(), eocd(1, header.capacity(), 30)));
+    }
+}
@@ -0,0 +1,244 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The packages of the mirror, each downloaded from upstream once with the updater's own
+ * {@link Downloader} and read by any number of devices while that download is still running.
+ *
+ * The total size is bounded by evicting the least recently used packages, but never one that is
+ * being downloaded or served, so the bound can be exceeded while a release is being rolled out.
+ * Packages on disk are adopted at startup from their chunk maps, and a partial one resumes where
+ * the previous run of the mirror stopped.
+ */
+final class MirrorCache {
+    private static final int TRANSFER_SIZE = 1024 * 1024;
+
+    final class Package {
+        final String path;
+        private final File file;
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private Downloader downloader;
+        private volatile IOException error;
+        // guarded by MirrorCache.this
+        private long length;
+        private long lastAccess;
+        private int readers;
+        private boolean started;
+        private boolean downloading;
+
+        private Package(final String path, final long length, final long lastAccess) {
+            this.path = path;
+            this.file = new File(directory, path);
+            this.length = length;
+            this.lastAccess = lastAccess;
+        }
+
+        long getLength() {
+            return downloader.getContentLength();
+        }
+
+        /**
+         * Writes the bytes in [start, end) as they arrive from upstream.
+         */
+        void transfer(final long start, final long end, final OutputStream output)
+                throws IOException, InterruptedException {
+            try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final WritableByteChannel target = Channels.newChannel(output);
+                for (long position = start; position < end; ) {
+                    final long pieceEnd = Math.min(end, position + TRANSFER_SIZE);
+                    downloader.await(position, pieceEnd);
+                    final long transferred = channel.transferTo(position, pieceEnd - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException("short read at " + position + " of " + path);
+                    }
+                    position += transferred;
+                }
+            }
+        }
+
+        /**
+         * Opens the upstream download, or the complete package on disk without a request, and
+         * starts fetching the missing chunks in the background. The end of the package comes
+         * first, as the updater reads the zip directory before anything else.
+         */
+        private void connect() {
+            try {
+                final Downloader downloader = new Downloader(upstream, file, path);
+                downloader.connect(true);
+                this.downloader = downloader;
+                if (!downloader.isComplete()) {
+                    downloader.prioritize(downloader.getContentLength() - 1);
+                    setDownloading(this, true);
+                    executor.execute(this::download);
+                }
+                setLength(this, downloader.getContentLength());
+            } catch (IOException | RuntimeException e) {
+                error = e instanceof IOException ? (IOException) e : new IOException(e);
+                remove(this);
+            } finally {
+                connected.countDown();
+            }
+        }
+
+        private void download() {
+            final long start = System.nanoTime();
+            try {
+                downloader.run((downloaded, contentLength) -> {
+                });
+                log("cached " + path + " (" + downloader.getContentLength() + " bytes, " +
+                        downloader.getResumed() + " resumed) in " +
+                        (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (IOException e) {
+                // the readers waiting on missing chunks fail, and the next request resumes
+                log("download of " + path + " failed: " + e);
+                error = e;
+                downloader.cancel();
+                remove(this);
+            } finally {
+                setDownloading(this, false);
+            }
+        }
+
+        private void awaitConnected() throws IOException, InterruptedException {
+            connected.await();
+            if (downloader == null) {
+                throw error;
+            }
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final Downloader.Connector upstream;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Package> packages = new HashMap<>();
+
+    MirrorCache(final File directory, final long maxBytes, final Downloader.Connector upstream) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.upstream = upstream;
+        directory.mkdirs();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final ChunkMap map = ChunkMap.load(file);
+                if (map != null && file.getName().equals(map.getPath()) && file.exists()) {
+                    packages.put(map.getPath(), new Package(map.getPath(), map.getContentLength(),
+                            file.lastModified()));
+                }
+            }
+        }
+        log("adopted " + packages.size() + " packages, " + getTotalBytes() + " bytes");
+    }
+
+    /**
+     * Returns true for paths that name a package, as opposed to the index and changelogs.
+     */
+    static boolean isPackage(final String path) {
+        return path.endsWith(".zip") && path.indexOf('/') == -1 && !path.startsWith(".");
+    }
+
+    /**
+     * Returns the package, starting its download if it is not cached. It is not evicted until
+     * released.
+     */
+    Package acquire(final String path) throws IOException, InterruptedException {
+        Package entry;
+        final boolean created;
+        synchronized (this) {
+            entry = packages.get(path);
+            if (entry == null) {
+                entry = new Package(path, -1, 0);
+                packages.put(path, entry);
+            }
+            created = !entry.started;
+            entry.started = true;
+            entry.readers++;
+            entry.lastAccess = System.currentTimeMillis();
+        }
+        if (created) {
+            entry.connect();
+        }
+        try {
+            entry.awaitConnected();
+        } catch (IOException | InterruptedException e) {
+            release(entry);
+            throw e;
+        }
+        return entry;
+    }
+
+    synchronized void release(final Package entry) {
+        entry.readers--;
+        evict();
+    }
+
+    private synchronized void setLength(final Package entry, final long length) {
+        entry.length = length;
+        evict();
+    }
+
+    private synchronized void setDownloading(final Package entry, final boolean downloading) {
+        entry.downloading = downloading;
+        if (!downloading) {
+            evict();
+        }
+    }
+
+    private synchronized void remove(final Package entry) {
+        if (packages.get(entry.path) == entry) {
+            packages.remove(entry.path);
+        }
+    }
+
+    private synchronized long getTotalBytes() {
+        long total = 0;
+        for (final Package entry : packages.values()) {
+            total += Math.max(0, entry.length);
+        }
+        return total;
+    }
+
+    private synchronized void evict() {
+        for (long total = getTotalBytes(); total > maxBytes; ) {
+            Package oldest = null;
+            for (final Package entry : packages.values()) {
+                if (entry.readers == 0 && !entry.downloading && entry.length > 0 &&
+                        (oldest == null || entry.lastAccess < oldest.lastAccess)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            packages.remove(oldest.path);
+            total -= oldest.length;
+            try {
+                Downloader.delete(oldest.file);
+                log("evicted " + oldest.path + " (" + oldest.length + " bytes)");
+            } catch (IOException e) {
+                log("failed to evict " + oldest.path + ": " + e);
+            }
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    static void log(final String message) {
+        System.out.println(String.format("%tT %s", System.currentTimeMillis(), message));
+    }
+}
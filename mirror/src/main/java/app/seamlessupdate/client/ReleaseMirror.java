@@ -0,0 +1,275 @@
+package app.seamlessupdate.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caching mirror of the release server, run on a host of a local network so that a fleet behind
+ * one uplink downloads each package from upstream once. Devices use it by setting its address as
+ * the base URL of the updater.
+ *
+ * Packages are cached by {@link MirrorCache} and served with single byte ranges while they are
+ * still being downloaded. The index and changelogs are revalidated upstream at most once per
+ * maxAgeSeconds, however many devices check, and served with conditional request support. The
+ * mirror does not have to be trusted: the index is signed and lists the hash of every package.
+ *
+ *   ./gradlew :mirror:run --args='upstream=https://releases.grapheneos.org/ port=8080'
+ */
+public final class ReleaseMirror implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT = 60000;
+    private static final int READ_TIMEOUT = 60000;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int ETAG_LENGTH = 8;
+
+    static final class Config {
+        String upstream = "https://releases.grapheneos.org/";
+        String address = "0.0.0.0";
+        int port = 8080;
+        String directory = "mirror-cache";
+        /**
+         * Bound on the size of the cached packages.
+         */
+        double maxGigabytes = 32;
+        /**
+         * Time for which the index and changelogs are served without revalidating them upstream.
+         */
+        long maxAgeSeconds = 60;
+
+        void set(final String name, final String value) {
+            try {
+                Config.class.getDeclaredField(name).set(this, parse(Config.class.getDeclaredField(name).getType(), value));
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new IllegalArgumentException("unknown parameter " + name);
+            }
+        }
+
+        private static Object parse(final Class<?> type, final String value) {
+            if (type == String.class) {
+                return value;
+            } else if (type == int.class) {
+                return Integer.parseInt(value);
+            } else if (type == long.class) {
+                return Long.parseLong(value);
+            }
+            return Double.parseDouble(value);
+        }
+    }
+
+    /**
+     * A small file as last fetched from upstream.
+     */
+    private static final class CachedFile {
+        final byte[] body;
+        final String etag;
+        final long fetchedNanos;
+
+        CachedFile(final byte[] body, final long fetchedNanos) {
+            this.body = body;
+            this.etag = getEtag(body);
+            this.fetchedNanos = fetchedNanos;
+        }
+    }
+
+    private final Config config;
+    private final HttpCache httpCache;
+    private final MirrorCache packages;
+    private final Map<String, Object> fileLocks = new ConcurrentHashMap<>();
+    private final Map<String, CachedFile> files = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final HttpServer server;
+
+    private ReleaseMirror(final Config config) throws IOException {
+        this.config = config;
+        final String upstream = config.upstream.endsWith("/") ? config.upstream : config.upstream + "/";
+        final Downloader.Connector connector = path -> {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(upstream + path).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            return connection;
+        };
+        final File directory = new File(config.directory);
+        final File httpDirectory = new File(directory, "http");
+        httpDirectory.mkdirs();
+        httpCache = new HttpCache(httpDirectory, connector);
+        packages = new MirrorCache(new File(directory, "packages"),
+                (long) (config.maxGigabytes * 1024 * 1024 * 1024), connector);
+        server = HttpServer.create(new InetSocketAddress(config.address, config.port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        MirrorCache.log("mirroring " + upstream + " on " + config.address + ":" + config.port);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Config config = new Config();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            config.set(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        final ReleaseMirror mirror = new ReleaseMirror(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(mirror::close));
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            final boolean head = "HEAD".equals(method);
+            if (!head && !"GET".equals(method)) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                return;
+            }
+            final String path = exchange.getRequestURI().getPath().substring(1);
+            if (MirrorCache.isPackage(path)) {
+                servePackage(exchange, path, head);
+            } else {
+                serveFile(exchange, path, head);
+            }
+        } catch (HttpStatusException e) {
+            // passed through, so that devices see a missing file or an overloaded upstream as such
+            if (e.retryAfterMillis != -1) {
+                exchange.getResponseHeaders().set("Retry-After",
+                        Long.toString(TimeUnit.MILLISECONDS.toSeconds(e.retryAfterMillis)));
+            }
+            exchange.sendResponseHeaders(e.responseCode, -1);
+        } catch (IOException e) {
+            // once the headers are sent, the device sees a truncated response and resumes
+            MirrorCache.log("failed to serve " + exchange.getRequestURI() + ": " + e);
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_GATEWAY, -1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void servePackage(final HttpExchange exchange, final String path, final boolean head)
+            throws IOException, InterruptedException {
+        final MirrorCache.Package entry = packages.acquire(path);
+        try {
+            final long length = entry.getLength();
+            long start = 0;
+            long end = length;
+            int responseCode = HttpURLConnection.HTTP_OK;
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                final long[] bounds = LocalPackageServer.parseRange(range, length);
+                if (bounds == null) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(HTTP_RANGE_NOT_SATISFIABLE, -1);
+                    return;
+                }
+                start = bounds[0];
+                end = bounds[1];
+                responseCode = HttpURLConnection.HTTP_PARTIAL;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (end - 1) + "/" + length);
+            }
+            if (head) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(end - start));
+                exchange.sendResponseHeaders(responseCode, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(responseCode, end - start);
+            try (final OutputStream output = exchange.getResponseBody()) {
+                entry.transfer(start, end, output);
+            }
+        } finally {
+            packages.release(entry);
+        }
+    }
+
+    private void serveFile(final HttpExchange exchange, final String path, final boolean head)
+            throws IOException {
+        final CachedFile file = getFile(path);
+        exchange.getResponseHeaders().set("ETag", file.etag);
+        if (file.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+            return;
+        }
+        if (head) {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(file.body.length));
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, file.body.length);
+        try (final OutputStream output = exchange.getResponseBody()) {
+            output.write(file.body);
+        }
+    }
+
+    /**
+     * Returns the file, revalidating it upstream if it is older than the max age. Concurrent
+     * requests for a file wait for a single revalidation, and a stale copy is served if upstream
+     * cannot be reached.
+     */
+    private CachedFile getFile(final String path) throws IOException {
+        synchronized (fileLocks.computeIfAbsent(path, key -> new Object())) {
+            final CachedFile cached = files.get(path);
+            final long now = System.nanoTime();
+            if (cached != null && now - cached.fetchedNanos < TimeUnit.SECONDS.toNanos(config.maxAgeSeconds)) {
+                return cached;
+            }
+            try {
+                final HttpCache.Response response = httpCache.fetch(path);
+                final CachedFile fetched = cached != null && !response.modified ?
+                        new CachedFile(cached.body, now) : new CachedFile(response.body, now);
+                files.put(path, fetched);
+                return fetched;
+            } catch (HttpStatusException e) {
+                if (cached == null || !e.isServerError()) {
+                    files.remove(path);
+                    throw e;
+                }
+                MirrorCache.log("serving stale " + path + ": " + e);
+                return cached;
+            } catch (IOException e) {
+                if (cached == null) {
+                    throw e;
+                }
+                MirrorCache.log("serving stale " + path + ": " + e);
+                return cached;
+            }
+        }
+    }
+
+    private static String getEtag(final byte[] body) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            final StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < ETAG_LENGTH; i++) {
+                etag.append(String.format(Locale.ROOT, "%02x", digest[i]));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        packages.close();
+    }
+}
@@ -5,18 +5,35 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.UserManager;
+import android.util.Log;
+
+import java.io.IOException;
 
 public class BootReceiver extends BroadcastReceiver {
+    private static final String TAG = "BootReceiver";
+
     @Override
     public void onReceive(final Context context, final Intent intent) {
         if (context.getSystemService(UserManager.class).isSystemUser()) {
-            Settings.getPreferences(context).edit().putBoolean(Settings.KEY_WAITING_FOR_REBOOT, false).apply();
+            Settings.init(context);
+            final UpdateJournal journal = Settings.getJournal(context);
+            if (journal.getState().phase == UpdateJournal.Phase.AWAITING_REBOOT) {
+                try {
+                    journal.moveTo(UpdateJournal.Phase.IDLE);
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to record reboot", e);
+                }
+            }
+            Settings.edit(context)
+                    .setUpdateStatus(Settings.UpdateStatus.NotAvailable)
+                    .setAvailableUpdate("", -1)
+                    .commit();
+            try {
+                Settings.setAvailableUpdateDescription(context, null);
+            } catch (IOException e) {
+                Log.e(TAG, "failed to delete update description", e);
+            }
             PeriodicJob.schedule(context);
-
-            Settings.setUpdateStatus(context, Settings.UpdateStatus.NotAvailable);
-            Settings.setAvailableUpdateVersion(context, "");
-            Settings.setAvailableUpdateDate(context, -1);
-            Settings.setAvailableUpdateDescription(context, "");
         } else {
             context.getPackageManager().setApplicationEnabledSetting(context.getPackageName(),
                 PackageManager.COMPONENT_ENABLED_STATE_DISABLED, 0);
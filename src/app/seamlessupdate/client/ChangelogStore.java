@@ -0,0 +1,99 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The changelog of the available update, kept compressed in its own file rather than in the
+ * preferences so that only the UI showing it ever reads it into memory.
+ */
+final class ChangelogStore {
+    private static final String TRUNCATED = "...\n";
+
+    private final File file;
+    private final int maxLength;
+
+    /**
+     * @param maxLength the number of characters kept, beyond which the changelog is cut at a line
+     */
+    ChangelogStore(final File file, final int maxLength) {
+        this.file = file;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Returns how many bytes of a UTF-8 changelog are enough to keep maxLength characters of it. No
+     * character takes more than three bytes, so write cuts a changelog of that many bytes before
+     * its last, possibly partial line.
+     */
+    static int getMaxEncodedLength(final int maxLength) {
+        return 3 * (maxLength + 1);
+    }
+
+    /**
+     * Replaces the changelog, streaming it line by line so that it is never held as a whole, or
+     * deletes it if there is none.
+     */
+    void write(final InputStream changelog) throws IOException {
+        if (changelog == null) {
+            delete();
+            return;
+        }
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(changelog, StandardCharsets.UTF_8));
+                final FileOutputStream stream = new FileOutputStream(tmp);
+                final GZIPOutputStream gzip = new GZIPOutputStream(stream);
+                final Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8)) {
+            long length = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                length += line.length() + 1;
+                if (length > maxLength) {
+                    writer.write(TRUNCATED);
+                    break;
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            gzip.finish();
+            stream.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to write " + file);
+        }
+    }
+
+    /**
+     * Returns the changelog, or an empty string if there is none.
+     */
+    String read() throws IOException {
+        if (!file.exists()) {
+            return "";
+        }
+        final StringBuilder builder = new StringBuilder();
+        try (final Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),
+                StandardCharsets.UTF_8)) {
+            final char[] buffer = new char[8192];
+            for (int n; (n = reader.read(buffer)) != -1; ) {
+                builder.append(buffer, 0, n);
+            }
+        }
+        return builder.toString();
+    }
+
+    void delete() {
+        file.delete();
+    }
+}
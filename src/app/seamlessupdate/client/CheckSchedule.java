@@ -0,0 +1,115 @@
+package app.seamlessupdate.client;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Timing of the periodic update check and of the retry after a failure, kept free of Android
+ * classes so that the fleet simulator schedules virtual devices the same way.
+ */
+final class CheckSchedule {
+    static final long INTERVAL_MILLIS = 4 * 60 * 60 * 1000;
+    static final long MIN_LATENCY_MILLIS = 4 * 60 * 1000;
+
+    /**
+     * Bounds on the poll interval recommended by the server, so that a bad value can neither flood
+     * the server nor leave devices without updates for long.
+     */
+    static final long MIN_INTERVAL_MILLIS = 60 * 60 * 1000;
+    static final long MAX_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+    /**
+     * The per-device jitter is up to this fraction of the interval.
+     */
+    private static final int JITTER_DIVISOR = 8;
+
+    /**
+     * Kinds of failure, which back off differently. Network failures start at the minimum latency
+     * since the job also waits for connectivity, failures of an overloaded server start longer to
+     * let it recover, and security failures are not retried before the next periodic check since
+     * fetching the same package again does not help. Neither is a lack of storage, which waits
+     * for the user to free some.
+     */
+    static final int FAILURE_NETWORK = 0;
+    static final int FAILURE_SERVER = 1;
+    static final int FAILURE_SECURITY = 2;
+    static final int FAILURE_STORAGE = 3;
+
+    private static final long SERVER_RETRY_MILLIS = 15 * 60 * 1000;
+    /**
+     * Bound on the backoff before jitter, beyond which the periodic check takes over anyway.
+     */
+    private static final long MAX_RETRY_MILLIS = INTERVAL_MILLIS;
+    private static final long MAX_RETRY_AFTER_MILLIS = 24 * 60 * 60 * 1000;
+
+    private CheckSchedule() {
+    }
+
+    /**
+     * Returns the poll interval for a device: the recommended interval, or the default one if
+     * there is none, lengthened by an offset derived from the device's jitter seed. Periodic jobs
+     * registered at the same time, such as after a mass reboot, drift apart instead of checking
+     * in together every time. The result is stable for a given seed, so an unchanged schedule
+     * compares equal to the registered job.
+     *
+     * @param recommendedMillis the interval from the metadata, or 0 if the server gave none
+     */
+    static long getIntervalMillis(final long recommendedMillis, final long jitterSeed) {
+        final long interval = recommendedMillis == 0 ? INTERVAL_MILLIS :
+                Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, recommendedMillis));
+        // truncated to seconds so the schedule shown by dumpsys stays readable
+        return interval + Math.floorMod(jitterSeed, interval / JITTER_DIVISOR) / 1000 * 1000;
+    }
+
+    static int classify(final Throwable failure) {
+        // a security failure wrapped in an IOException is one the download recovers from
+        if (failure instanceof GeneralSecurityException) {
+            return FAILURE_SECURITY;
+        }
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpStatusException && ((HttpStatusException) cause).isServerError()) {
+                return FAILURE_SERVER;
+            }
+            if (cause instanceof InsufficientSpaceException) {
+                return FAILURE_STORAGE;
+            }
+        }
+        return FAILURE_NETWORK;
+    }
+
+    /**
+     * Returns the delay requested by the server with a failed response, or -1 if there is none.
+     */
+    static long getRetryAfterMillis(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpStatusException) {
+                return ((HttpStatusException) cause).retryAfterMillis;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the delay before retrying after consecutive failed attempts, or -1 to leave it to
+     * the periodic check. The backoff doubles with every attempt up to MAX_RETRY_MILLIS and is
+     * lengthened by up to half at random, so that devices failing together spread out. A
+     * Retry-After from the server takes the place of the backoff, with a quarter of jitter since
+     * the server likely sent the same value to every device it turned away.
+     *
+     * @param attempt the number of failures before this one
+     * @param retryAfterMillis the delay requested by the server, or -1 if there is none
+     */
+    static long getRetryDelayMillis(final int failure, final int attempt, final long retryAfterMillis,
+            final Random random) {
+        if (failure == FAILURE_SECURITY || failure == FAILURE_STORAGE) {
+            return -1;
+        }
+        if (retryAfterMillis >= 0) {
+            final long delay = Math.max(MIN_LATENCY_MILLIS, Math.min(MAX_RETRY_AFTER_MILLIS, retryAfterMillis));
+            return delay + (long) (random.nextDouble() * delay / 4);
+        }
+        final long base = failure == FAILURE_SERVER ? SERVER_RETRY_MILLIS : MIN_LATENCY_MILLIS;
+        final long backoff = Math.min(MAX_RETRY_MILLIS, base << Math.min(attempt, 16));
+        return backoff + (long) (random.nextDouble() * backoff / 2);
+    }
+}
@@ -0,0 +1,291 @@
+package app.seamlessupdate.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Persisted map of a partially downloaded file, split into fixed-size chunks. Every chunk has a
+ * completion bit and the SHA-256 of its content as it came off the network, so the data on disk
+ * can be checked and repaired one chunk at a time.
+ *
+ * The map also records which chunks were written last, in whatever order they were fetched, so
+ * that a resumed download knows which ones an interruption may have left torn on storage.
+ */
+final class ChunkMap {
+    private static final int VERSION = 3;
+    private static final int HASH_LENGTH = 32;
+
+    private final String path;
+    private final long contentLength;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final BitSet complete;
+    private final byte[] hashes;
+    /**
+     * The chunks that completed before the last snapshot but after the one preceding it.
+     */
+    private BitSet recent = new BitSet();
+    /**
+     * The chunks that completed since the last snapshot.
+     */
+    private BitSet pending = new BitSet();
+    private boolean allocated;
+
+    ChunkMap(final String path, final long contentLength, final int chunkSize) {
+        this(path, contentLength, chunkSize, new BitSet(), null);
+    }
+
+    private ChunkMap(final String path, final long contentLength, final int chunkSize,
+            final BitSet complete, final byte[] hashes) {
+        this.path = path;
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((contentLength + chunkSize - 1) / chunkSize);
+        this.complete = complete;
+        this.hashes = hashes != null ? hashes : new byte[chunkCount * HASH_LENGTH];
+    }
+
+    static File getFile(final File file) {
+        return new File(file.getPath() + ".chunks");
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the persisted map for file, or null if there is none or it cannot be read.
+     */
+    static ChunkMap load(final File file) {
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(getFile(file)))) {
+            if (input.readInt() != VERSION) {
+                return null;
+            }
+            final String path = input.readUTF();
+            final long contentLength = input.readLong();
+            final int chunkSize = input.readInt();
+            if (contentLength < 0 || chunkSize <= 0 ||
+                    contentLength / chunkSize >= Integer.MAX_VALUE / HASH_LENGTH) {
+                return null;
+            }
+            final ChunkMap map = new ChunkMap(path, contentLength, chunkSize);
+            map.allocated = input.readBoolean();
+            for (int chunk = 0; chunk < map.chunkCount; chunk++) {
+                if (input.readBoolean()) {
+                    map.complete.set(chunk);
+                }
+                if (input.readBoolean()) {
+                    map.recent.set(chunk);
+                }
+            }
+            input.readFully(map.hashes);
+            return map;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a copy of the map as it is now, to be saved once the data of its complete chunks is
+     * synced while chunks keep completing. The chunks completed since the previous snapshot become
+     * the recent ones, unless there are none.
+     */
+    synchronized ChunkMap snapshot() {
+        if (!pending.isEmpty()) {
+            recent = pending;
+            pending = new BitSet();
+        }
+        final ChunkMap snapshot = new ChunkMap(path, contentLength, chunkSize,
+                (BitSet) complete.clone(), hashes.clone());
+        snapshot.recent = (BitSet) recent.clone();
+        snapshot.allocated = allocated;
+        return snapshot;
+    }
+
+    synchronized void save(final File file) throws IOException {
+        final File mapFile = getFile(file);
+        final File tmp = new File(mapFile.getPath() + ".tmp");
+        try (final FileOutputStream stream = new FileOutputStream(tmp);
+                final DataOutputStream output = new DataOutputStream(stream)) {
+            output.writeInt(VERSION);
+            output.writeUTF(path);
+            output.writeLong(contentLength);
+            output.writeInt(chunkSize);
+            output.writeBoolean(allocated);
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                output.writeBoolean(complete.get(chunk));
+                output.writeBoolean(recent.get(chunk) || pending.get(chunk));
+            }
+            output.write(hashes);
+            output.flush();
+            stream.getFD().sync();
+        }
+        if (!tmp.renameTo(mapFile)) {
+            throw new IOException("failed to write " + mapFile);
+        }
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    int getChunk(final long position) {
+        return (int) (position / chunkSize);
+    }
+
+    long getChunkStart(final int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    long getChunkEnd(final int chunk) {
+        return Math.min(getChunkStart(chunk) + chunkSize, contentLength);
+    }
+
+    /**
+     * Returns whether the whole file was allocated ahead of the download.
+     */
+    synchronized boolean isAllocated() {
+        return allocated;
+    }
+
+    synchronized void setAllocated() {
+        allocated = true;
+    }
+
+    synchronized boolean isComplete(final int chunk) {
+        return complete.get(chunk);
+    }
+
+    synchronized boolean isComplete() {
+        return complete.cardinality() == chunkCount;
+    }
+
+    synchronized void setComplete(final int chunk, final byte[] hash) {
+        System.arraycopy(hash, 0, hashes, chunk * HASH_LENGTH, HASH_LENGTH);
+        complete.set(chunk);
+        pending.set(chunk);
+        notifyAll();
+    }
+
+    /**
+     * Returns whether a chunk completed in the last interval between snapshots, or since the last
+     * one.
+     */
+    synchronized boolean isRecent(final int chunk) {
+        return recent.get(chunk) || pending.get(chunk);
+    }
+
+    /**
+     * Returns whether every chunk overlapping [start, end) is complete. Bytes past the end of the
+     * file count as complete.
+     */
+    synchronized boolean isComplete(final long start, final long end) {
+        final long limit = Math.min(end, contentLength);
+        if (start >= limit) {
+            return true;
+        }
+        return complete.nextClearBit(getChunk(start)) > getChunk(limit - 1);
+    }
+
+    /**
+     * Waits up to timeoutMillis for the chunks overlapping [start, end) to be complete.
+     *
+     * @return false if the timeout expired first
+     */
+    synchronized boolean await(final long start, final long end, final long timeoutMillis)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!isComplete(start, end)) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    synchronized void invalidate(final int chunk) {
+        complete.clear(chunk);
+    }
+
+    /**
+     * Returns the index of the first chunk still to be fetched, or the chunk count if there is none.
+     */
+    synchronized int getFirstIncomplete() {
+        return complete.nextClearBit(0);
+    }
+
+    /**
+     * Returns the length of the prefix made up only of complete chunks.
+     */
+    synchronized long getContiguousLength() {
+        final int first = complete.nextClearBit(0);
+        return first >= chunkCount ? contentLength : getChunkStart(first);
+    }
+
+    synchronized long getCompletedBytes() {
+        long completed = 0;
+        for (int chunk = complete.nextSetBit(0); chunk >= 0; chunk = complete.nextSetBit(chunk + 1)) {
+            completed += getChunkEnd(chunk) - getChunkStart(chunk);
+        }
+        return completed;
+    }
+
+    /**
+     * Hashes a complete chunk from disk and clears its completion bit if it no longer matches.
+     *
+     * @return false if the chunk was found to be corrupt
+     */
+    boolean check(final FileChannel channel, final int chunk, final ByteBuffer buffer) throws IOException {
+        final byte[] expected;
+        synchronized (this) {
+            expected = Arrays.copyOfRange(hashes, chunk * HASH_LENGTH, (chunk + 1) * HASH_LENGTH);
+        }
+        if (MessageDigest.isEqual(expected, hash(channel, chunk, buffer))) {
+            return true;
+        }
+        invalidate(chunk);
+        return false;
+    }
+
+    private byte[] hash(final FileChannel channel, final int chunk, final ByteBuffer buffer) throws IOException {
+        final MessageDigest digest = newDigest();
+        final long end = getChunkEnd(chunk);
+        long position = getChunkStart(chunk);
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            final int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += bytesRead;
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,711 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches a file as a series of HTTP range requests spread over several concurrent connections,
+ * each writing at its own offset.
+ *
+ * The file is tracked as fixed-size chunks in a {@link ChunkMap} persisted next to it. A resumed
+ * download re-checks the chunks written last against their hashes and only fetches the chunks that
+ * are missing or corrupt. Servers ignoring the Range header are handled by falling back to a single
+ * stream from the start.
+ */
+class Downloader {
+    interface Connector {
+        HttpURLConnection open(String path) throws IOException;
+
+        /**
+         * Called when a request on a connection opened by this connector failed, returning true if
+         * connections opened from now on go to another server, in which case the transfer is
+         * resumed from there.
+         */
+        default boolean failover(final HttpURLConnection connection) {
+            return false;
+        }
+    }
+
+    interface ProgressListener {
+        void onProgress(long downloaded, long contentLength);
+    }
+
+    /**
+     * Reserves storage for the file ahead of the download.
+     */
+    interface Allocator {
+        long getAllocatableBytes(File file) throws IOException;
+
+        /**
+         * Extends the file to length with its blocks allocated, so that writes at any offset
+         * neither fail for lack of space nor fragment the file.
+         */
+        void allocate(RandomAccessFile file, long length) throws IOException;
+    }
+
+    /**
+     * Extends the file without reserving its blocks, for platforms without a way to allocate
+     * them. Writes at any offset still land within the file, which is never grown piecemeal.
+     */
+    static final Allocator SPARSE_ALLOCATOR = new Allocator() {
+        @Override
+        public long getAllocatableBytes(final File file) {
+            return file.getAbsoluteFile().getParentFile().getUsableSpace();
+        }
+
+        @Override
+        public void allocate(final RandomAccessFile file, final long length) throws IOException {
+            file.setLength(length);
+        }
+    };
+
+    static final int CONNECTIONS = 4;
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    private static final int MIN_TRANSFER_SIZE = 64 * 1024;
+    private static final int MAX_TRANSFER_SIZE = 1024 * 1024;
+    private static final long TRANSFER_TARGET_NANOS = 100 * 1000 * 1000;
+    private static final int DIGEST_BUFFER_SIZE = 256 * 1024;
+    private static final long DIGEST_POLL_MILLIS = 100;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    /**
+     * Failed transfers that are resumed elsewhere, counting each of the connections that fail
+     * together on one server.
+     */
+    private static final int MAX_FAILOVERS = 4 * CONNECTIONS;
+
+    /**
+     * Consecutive chunks fetched with a single request.
+     */
+    private static class Run {
+        final int first;
+        final int last;
+        volatile HttpURLConnection connection;
+        /**
+         * The connection the run was last fetched on, which a failed transfer fails over from.
+         */
+        volatile HttpURLConnection opened;
+
+        Run(final int first, final int last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private final Connector connector;
+    private final File file;
+    private final String path;
+    private final int connections;
+    private final PackageVerifier verifier;
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong refetched = new AtomicLong();
+    private final AtomicInteger failovers = new AtomicInteger();
+    private long resumed;
+    private long timeToFirstByteNanos = -1;
+    private ChunkMap map;
+    private Run firstRun;
+    private boolean rangeSupported = true;
+    private int priorityChunk;
+    private RateLimiter limiter = new RateLimiter(0);
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+
+    Downloader(final Connector connector, final File file, final String path) {
+        this(connector, file, path, CONNECTIONS);
+    }
+
+    Downloader(final Connector connector, final File file, final String path, final int connections) {
+        this.connector = connector;
+        this.file = file;
+        this.path = path;
+        this.connections = connections;
+        this.verifier = new PackageVerifier(file);
+    }
+
+    static void delete(final File file) throws IOException {
+        Files.deleteIfExists(ChunkMap.getFile(file).toPath());
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Re-checks every chunk of a completely downloaded file against its recorded hash, marking the
+     * corrupt ones so that resuming the download fetches only those again.
+     *
+     * @return true if corrupt chunks were found and can be repaired
+     */
+    static boolean repair(final File file) throws IOException {
+        final ChunkMap map = ChunkMap.load(file);
+        if (map == null || !map.isComplete()) {
+            return false;
+        }
+        boolean corrupt = false;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+            for (int chunk = 0; chunk < map.getChunkCount(); chunk++) {
+                if (!map.check(channel, chunk, buffer)) {
+                    corrupt = true;
+                }
+            }
+        }
+        if (corrupt) {
+            map.save(file);
+        }
+        return corrupt;
+    }
+
+    long getContentLength() {
+        return map == null ? -1 : map.getContentLength();
+    }
+
+    long getDownloaded() {
+        return downloaded.get();
+    }
+
+    /**
+     * Returns the bytes kept from a previous attempt.
+     */
+    long getResumed() {
+        return resumed;
+    }
+
+    /**
+     * Returns the bytes downloaded before that had to be discarded, because they were corrupt, part
+     * of an interrupted chunk or could not be resumed.
+     */
+    long getRefetched() {
+        return refetched.get();
+    }
+
+    /**
+     * Returns the time until the response to the first request arrived, or -1 if none was needed.
+     */
+    long getTimeToFirstByteMillis() {
+        return timeToFirstByteNanos == -1 ? -1 : TimeUnit.NANOSECONDS.toMillis(timeToFirstByteNanos);
+    }
+
+    boolean isComplete() {
+        return map != null && map.isComplete();
+    }
+
+    /**
+     * Returns the verifier holding the digest of the package hashed so far, to be finished once
+     * run has returned.
+     */
+    PackageVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * Fetches the chunks from position onwards before the ones preceding it, so that the end of a
+     * package is available early. Has to be called before run.
+     */
+    void prioritize(final long position) {
+        priorityChunk = Math.min(map.getChunk(position), Math.max(map.getChunkCount() - 1, 0));
+    }
+
+    /**
+     * Holds the connections of the download to a combined rate. Has to be called before run.
+     */
+    void setRateLimiter(final RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Blocks until the bytes in [start, end) are on disk, while run is in progress on another thread.
+     * Throws if the download stops before they arrive.
+     */
+    void await(final long start, final long end) throws IOException, InterruptedException {
+        while (!map.await(start, end, PROGRESS_INTERVAL_MILLIS)) {
+            if (cancelled) {
+                throw new IOException("download stopped before bytes " + start + "-" + end + " arrived");
+            }
+        }
+    }
+
+    /**
+     * Stops a download running on another thread, which then fails with an InterruptedIOException.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Checks that the rest of the file fits in the free space of its file system and allocates it,
+     * so that a full disk fails the download before anything is transferred. Has to be called
+     * after connect. The chunk map records the allocation, as the length of the file says nothing
+     * about the blocks of a file written out of order.
+     *
+     * @throws InsufficientSpaceException if the file does not fit
+     */
+    void preallocate(final Allocator allocator) throws IOException {
+        if (map.isAllocated()) {
+            return;
+        }
+        // only the chunks written so far have blocks until the file is allocated
+        final long required = map.getContentLength() - map.getCompletedBytes();
+        final long available = allocator.getAllocatableBytes(file);
+        if (required > available) {
+            throw new InsufficientSpaceException(file, required, available);
+        }
+        try (final RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            allocator.allocate(output, map.getContentLength());
+        }
+        map.setAllocated();
+        map.save(file);
+    }
+
+    /**
+     * Opens the first connection and plans the chunks. Throws if the file is not available, in
+     * which case nothing on disk is touched.
+     *
+     * When resuming, the persisted chunk map is reused after re-checking the chunks written last.
+     * Without one the file is fetched again from the start, as there is no telling which of its
+     * blocks hold downloaded data.
+     */
+    void connect(final boolean resume) throws IOException {
+        if (resume) {
+            final ChunkMap saved = ChunkMap.load(file);
+            if (saved != null && path.equals(saved.getPath()) && file.exists()) {
+                map = saved;
+                recheck();
+                downloaded.set(map.getCompletedBytes());
+                resumed = downloaded.get();
+                final int first = map.getFirstIncomplete();
+                if (first == map.getChunkCount()) {
+                    return;
+                }
+                final long start = System.nanoTime();
+                final HttpURLConnection connection = requestRange(map.getChunkStart(first),
+                        map.getChunkEnd(first) - 1);
+                final int responseCode = connection.getResponseCode();
+                timeToFirstByteNanos = System.nanoTime() - start;
+                if (responseCode == HttpURLConnection.HTTP_PARTIAL &&
+                        parseTotalLength(connection) == map.getContentLength()) {
+                    firstRun = new Run(first, first);
+                    firstRun.connection = connection;
+                    return;
+                }
+                connection.disconnect();
+                refetched.addAndGet(resumed);
+            }
+        }
+        connectFromStart();
+    }
+
+    private void connectFromStart() throws IOException {
+        verifier.reset();
+        final long start = System.nanoTime();
+        final HttpURLConnection connection = requestRange(0, CHUNK_SIZE - 1);
+        final int responseCode = connection.getResponseCode();
+        timeToFirstByteNanos = System.nanoTime() - start;
+        long contentLength = parseTotalLength(connection);
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+            rangeSupported = false;
+            contentLength = connection.getContentLengthLong();
+        } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            final HttpStatusException e = new HttpStatusException(connection, responseCode, path);
+            connection.disconnect();
+            throw e;
+        }
+        if (contentLength < 0) {
+            connection.disconnect();
+            throw new IOException("unknown content length for " + path);
+        }
+
+        delete(file);
+        file.createNewFile();
+        map = new ChunkMap(path, contentLength, CHUNK_SIZE);
+        firstRun = new Run(0, rangeSupported ? 0 : map.getChunkCount() - 1);
+        firstRun.connection = connection;
+        downloaded.set(0);
+        resumed = 0;
+        map.save(file);
+    }
+
+    /**
+     * Re-checks the chunks written last, which are the ones an interruption may have left torn on
+     * storage. Those are the ones recorded as recent by the map, wherever they are in the file.
+     */
+    private void recheck() throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+            for (int chunk = 0; chunk < map.getChunkCount(); chunk++) {
+                if (map.isComplete(chunk) && map.isRecent(chunk)) {
+                    if (!map.check(channel, chunk, buffer)) {
+                        refetched.addAndGet(map.getChunkEnd(chunk) - map.getChunkStart(chunk));
+                    }
+                }
+            }
+        }
+        map.save(file);
+    }
+
+    private static long parseTotalLength(final HttpURLConnection connection) {
+        final String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        final int slash = contentRange.lastIndexOf('/');
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends a range request and waits for the response, failing over to another server through
+     * the connector while this one cannot be reached or answers with an error.
+     */
+    private HttpURLConnection requestRange(final long start, final long end) throws IOException {
+        while (true) {
+            final HttpURLConnection connection = connector.open(path);
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            try {
+                final int responseCode = connection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_PARTIAL ||
+                        responseCode == HTTP_RANGE_NOT_SATISFIABLE || !failover(connection)) {
+                    return connection;
+                }
+            } catch (IOException e) {
+                if (!failover(connection)) {
+                    connection.disconnect();
+                    throw e;
+                }
+            }
+            connection.disconnect();
+        }
+    }
+
+    private boolean failover(final HttpURLConnection connection) {
+        return !cancelled && failovers.incrementAndGet() <= MAX_FAILOVERS && connector.failover(connection);
+    }
+
+    /**
+     * Returns the number of times the download moved to another server.
+     */
+    int getFailovers() {
+        return Math.min(failovers.get(), MAX_FAILOVERS);
+    }
+
+    private HttpURLConnection openRange(final int first, final int last) throws IOException {
+        final HttpURLConnection connection = connector.open(path);
+        connection.setRequestProperty("Range",
+                "bytes=" + map.getChunkStart(first) + "-" + (map.getChunkEnd(last) - 1));
+        return connection;
+    }
+
+    /**
+     * Returns random access to the remote file through small range requests, or null if the server
+     * does not support ranges. Has to be called after connect.
+     */
+    ZipDirectory.Source newRemoteSource() {
+        if (!rangeSupported) {
+            return null;
+        }
+        return (final ByteBuffer buffer, final long position) -> {
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            final HttpURLConnection connection = connector.open(path);
+            connection.setRequestProperty("Range",
+                    "bytes=" + position + "-" + (position + buffer.remaining() - 1));
+            boolean consumed = false;
+            try {
+                final String contentRange = connection.getHeaderField("Content-Range");
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL ||
+                        contentRange == null || !contentRange.startsWith("bytes " + position + "-")) {
+                    throw new IOException("range request at " + position + " not honored");
+                }
+                try (final ReadableByteChannel input = Channels.newChannel(connection.getInputStream())) {
+                    while (buffer.hasRemaining()) {
+                        if (input.read(buffer) == -1) {
+                            throw new IOException("unexpected end of stream at " + position);
+                        }
+                    }
+                }
+                consumed = true;
+            } finally {
+                if (!consumed) {
+                    connection.disconnect();
+                }
+            }
+        };
+    }
+
+    /**
+     * Fetches the incomplete chunks in ascending order over several concurrent connections and
+     * reports progress about once a second.
+     *
+     * Keeping the chunks small and in order lets the contiguous prefix of the file grow during
+     * the download, which is hashed in the background for the package signature check.
+     */
+    void run(final ProgressListener listener) throws IOException {
+        final Deque<Run> queue = new ConcurrentLinkedDeque<>();
+        if (firstRun != null) {
+            queue.add(firstRun);
+        }
+        if (rangeSupported) {
+            for (int i = 0; i < map.getChunkCount(); i++) {
+                final int chunk = (priorityChunk + i) % map.getChunkCount();
+                if (!map.isComplete(chunk) && (firstRun == null || chunk != firstRun.first)) {
+                    queue.add(new Run(chunk, chunk));
+                }
+            }
+        }
+        if (queue.isEmpty()) {
+            return;
+        }
+        final List<Run> runs = new CopyOnWriteArrayList<>(queue);
+
+        final int workers = Math.min(connections, runs.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(workers + 1);
+        final CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        try (final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final Future<Void> digest = executor.submit(() -> {
+                digest(channel);
+                return null;
+            });
+            try {
+                for (int i = 0; i < workers; i++) {
+                    completion.submit(() -> {
+                        final TransferBuffer buffer = new TransferBuffer();
+                        final MessageDigest chunkDigest = ChunkMap.newDigest();
+                        for (Run run; !cancelled && (run = queue.poll()) != null; ) {
+                            try {
+                                fetch(run, channel, buffer, chunkDigest);
+                            } catch (IOException e) {
+                                if (!rangeSupported || run.opened == null || !failover(run.opened)) {
+                                    throw e;
+                                }
+                                // resumed ahead of the other runs from the first chunk it lacks
+                                int first = run.first;
+                                while (first < run.last && map.isComplete(first)) {
+                                    first++;
+                                }
+                                final Run resumed = new Run(first, run.last);
+                                runs.add(resumed);
+                                queue.offerFirst(resumed);
+                            }
+                        }
+                        return null;
+                    });
+                }
+                for (int remaining = workers; remaining > 0; ) {
+                    final Future<Void> future = completion.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (future != null) {
+                        remaining--;
+                        getResult(future);
+                    }
+                    checkpoint(channel);
+                    listener.onProgress(downloaded.get(), map.getContentLength());
+                }
+                if (cancelled) {
+                    throw new InterruptedIOException("download cancelled");
+                }
+                finished = true;
+                getResult(digest);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("download interrupted");
+            } finally {
+                cancelled = true;
+                for (final Run run : runs) {
+                    final HttpURLConnection connection = run.connection;
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                }
+                executor.shutdown();
+                awaitTermination(executor);
+                checkpoint(channel);
+            }
+        }
+    }
+
+    /**
+     * Syncs the file and saves the chunk map. The chunks recorded as complete are the ones that
+     * were before the sync, as the data of chunks completing during it may not be on storage yet.
+     */
+    private void checkpoint(final FileChannel channel) throws IOException {
+        final ChunkMap snapshot = map.snapshot();
+        channel.force(false);
+        snapshot.save(file);
+    }
+
+    /**
+     * Hashes the prefix of complete chunks as it grows, including the part of it that a resumed
+     * download already had.
+     */
+    private void digest(final FileChannel channel) throws IOException, InterruptedException {
+        final long limit = PackageVerifier.getLimit(map.getContentLength());
+        final ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+        while (!cancelled && verifier.getPosition() < limit) {
+            final long available = Math.min(map.getContiguousLength(), limit);
+            if (available > verifier.getPosition()) {
+                verifier.update(channel, available, buffer);
+            } else if (finished) {
+                break;
+            } else {
+                Thread.sleep(DIGEST_POLL_MILLIS);
+            }
+        }
+    }
+
+    private static void getResult(final Future<Void> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void awaitTermination(final ExecutorService executor) {
+        try {
+            executor.awaitTermination(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fetches the chunks of a run, hashing each one as it comes off the network. A chunk is only
+     * marked complete once all of it was written, so an interrupted chunk is fetched whole again.
+     */
+    private void fetch(final Run run, final FileChannel channel, final TransferBuffer buffer,
+            final MessageDigest chunkDigest) throws IOException {
+        HttpURLConnection connection = run.connection;
+        if (connection == null) {
+            connection = openRange(run.first, run.last);
+            run.connection = connection;
+            run.opened = connection;
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL ||
+                    parseTotalLength(connection) != map.getContentLength()) {
+                throw new IOException("range request for chunk " + run.first + " not honored");
+            }
+        } else {
+            run.opened = connection;
+        }
+        boolean consumed = false;
+        long partial = 0;
+        try (final ReadableByteChannel input = Channels.newChannel(connection.getInputStream())) {
+            for (int chunk = run.first; chunk <= run.last; chunk++) {
+                final long end = map.getChunkEnd(chunk);
+                long position = map.getChunkStart(chunk);
+                chunkDigest.reset();
+                partial = 0;
+                while (position < end) {
+                    if (cancelled) {
+                        throw new InterruptedIOException("download cancelled");
+                    }
+                    final int bytesRead = buffer.fill(input, limiter.limit(end - position));
+                    if (bytesRead == -1) {
+                        throw new IOException("unexpected end of stream for chunk " + chunk);
+                    }
+                    buffer.digest(chunkDigest);
+                    position = buffer.drain(channel, position);
+                    downloaded.addAndGet(bytesRead);
+                    partial += bytesRead;
+                    limiter.acquire(bytesRead);
+                }
+                map.setComplete(chunk, chunkDigest.digest());
+                partial = 0;
+            }
+            consumed = true;
+        } finally {
+            // a fully read response leaves the connection in the keep-alive pool for the next run
+            if (!consumed) {
+                // the interrupted chunk is fetched whole again, here or from another server
+                downloaded.addAndGet(-partial);
+                refetched.addAndGet(partial);
+                connection.disconnect();
+            }
+            run.connection = null;
+        }
+    }
+
+    /**
+     * Reusable direct buffer for one connection, sized so that filling it takes roughly
+     * TRANSFER_TARGET_NANOS at the measured throughput. Fast links get few large writes, slow
+     * links still report progress and persist their position regularly.
+     */
+    static final class TransferBuffer {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_TRANSFER_SIZE);
+        private int size = MIN_TRANSFER_SIZE;
+
+        /**
+         * Reads until the buffer is full, remaining bytes were read or the stream ended.
+         *
+         * @return the number of bytes read, or -1 if the stream ended before any byte was read
+         */
+        int fill(final ReadableByteChannel input, final long remaining) throws IOException {
+            buffer.clear();
+            buffer.limit((int) Math.min(size, remaining));
+            final long start = System.nanoTime();
+            boolean eof = false;
+            while (buffer.hasRemaining()) {
+                if (input.read(buffer) == -1) {
+                    eof = true;
+                    break;
+                }
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (buffer.position() == size) {
+                if (elapsed < TRANSFER_TARGET_NANOS / 2 && size < MAX_TRANSFER_SIZE) {
+                    size *= 2;
+                } else if (elapsed > TRANSFER_TARGET_NANOS * 2 && size > MIN_TRANSFER_SIZE) {
+                    size /= 2;
+                }
+            }
+            buffer.flip();
+            return eof && !buffer.hasRemaining() ? -1 : buffer.remaining();
+        }
+
+        /**
+         * Feeds the filled bytes to digest without consuming them.
+         */
+        void digest(final MessageDigest digest) {
+            digest.update(buffer.duplicate());
+        }
+
+        /**
+         * Writes the filled bytes at position and returns the position following them.
+         */
+        long drain(final FileChannel channel, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package app.seamlessupdate.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * On-disk cache of small server responses, revalidated with conditional requests so that an
+ * unchanged response costs a 304 without a body.
+ */
+final class HttpCache {
+    private static final int VERSION = 1;
+
+    static final class Response {
+        final byte[] body;
+        final boolean modified;
+
+        Response(final byte[] body, final boolean modified) {
+            this.body = body;
+            this.modified = modified;
+        }
+    }
+
+    private static final class Entry {
+        final String etag;
+        final long lastModified;
+        final byte[] body;
+
+        Entry(final String etag, final long lastModified, final byte[] body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+
+    private final File directory;
+    private final Downloader.Connector connector;
+
+    HttpCache(final File directory, final Downloader.Connector connector) {
+        this.directory = directory;
+        this.connector = connector;
+    }
+
+    /**
+     * Fetches path, sending the validators of the cached response if there is one.
+     *
+     * @return the cached body with modified unset if the server answered 304, otherwise the new
+     * body, which is cached if the server sent validators for it
+     */
+    Response fetch(final String path) throws IOException {
+        return fetch(path, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Fetches path like {@link #fetch(String)}, keeping only the first maxLength bytes of the body
+     * in memory and in the cache. The rest of a longer response is not read.
+     */
+    Response fetch(final String path, final int maxLength) throws IOException {
+        final Entry cached = load(path);
+        final HttpURLConnection connection = connector.open(path);
+        boolean consumed = false;
+        try {
+            if (cached != null) {
+                if (cached.etag != null) {
+                    connection.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified > 0) {
+                    connection.setIfModifiedSince(cached.lastModified);
+                }
+            }
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                consumed = true;
+                return new Response(cached.body, false);
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new HttpStatusException(connection, responseCode, path);
+            }
+            final byte[] body;
+            try (final InputStream input = connection.getInputStream()) {
+                body = readBody(input, maxLength);
+                // a response that was cut leaves the connection unusable for the next request
+                consumed = input.read() == -1;
+            }
+            final Entry entry = new Entry(connection.getHeaderField("ETag"),
+                    connection.getLastModified(), body);
+            if (entry.etag != null || entry.lastModified > 0) {
+                save(path, entry);
+            } else {
+                remove(path);
+            }
+            return new Response(body, true);
+        } finally {
+            // a fully read response leaves the connection in the keep-alive pool for reuse
+            if (!consumed) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    void remove(final String path) {
+        getFile(path).delete();
+    }
+
+    private File getFile(final String path) {
+        return new File(directory, path.replace('/', '_'));
+    }
+
+    private static byte[] readBody(final InputStream input, final int maxLength) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int n; output.size() < maxLength &&
+                (n = input.read(buffer, 0, Math.min(buffer.length, maxLength - output.size()))) != -1; ) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private Entry load(final String path) {
+        final File file = getFile(path);
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (input.readInt() != VERSION) {
+                return null;
+            }
+            final String etag = input.readBoolean() ? input.readUTF() : null;
+            final long lastModified = input.readLong();
+            final int length = input.readInt();
+            // a corrupt length is a cache miss rather than an allocation the file cannot back
+            if (length < 0 || length > file.length()) {
+                return null;
+            }
+            final byte[] body = new byte[length];
+            input.readFully(body);
+            return new Entry(etag, lastModified, body);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void save(final String path, final Entry entry) throws IOException {
+        directory.mkdirs();
+        final File file = getFile(path);
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp))) {
+            output.writeInt(VERSION);
+            output.writeBoolean(entry.etag != null);
+            if (entry.etag != null) {
+                output.writeUTF(entry.etag);
+            }
+            output.writeLong(entry.lastModified);
+            output.writeInt(entry.body.length);
+            output.write(entry.body);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to write " + file);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package app.seamlessupdate.client;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * An unexpected HTTP response from the release server, carrying what the retry policy needs.
+ */
+final class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    final int responseCode;
+    /**
+     * The delay requested by a Retry-After header, or -1 if there was none.
+     */
+    final long retryAfterMillis;
+
+    HttpStatusException(final HttpURLConnection connection, final int responseCode, final String path) {
+        super("unexpected response code " + responseCode + " for " + path);
+        this.responseCode = responseCode;
+        retryAfterMillis = parseRetryAfter(connection);
+    }
+
+    /**
+     * Returns true for responses of a server that is failing or shedding load, as opposed to one
+     * refusing this particular request.
+     */
+    boolean isServerError() {
+        return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR || responseCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * Parses Retry-After, which is either a number of seconds or an HTTP date.
+     */
+    private static long parseRetryAfter(final HttpURLConnection connection) {
+        final String value = connection.getHeaderField("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Math.min(Long.parseLong(value.trim()), Integer.MAX_VALUE)) * 1000;
+        } catch (NumberFormatException e) {
+            final long date = connection.getHeaderFieldDate("Retry-After", -1);
+            return date == -1 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Not enough free space for a download, found before any of it is transferred.
+ */
+final class InsufficientSpaceException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final long required;
+    final long available;
+
+    InsufficientSpaceException(final File file, final long required, final long available) {
+        super(required + " bytes needed for " + file + " but only " + available + " available");
+        this.required = required;
+        this.available = available;
+    }
+}
@@ -0,0 +1,253 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loopback HTTP server handing a package to update_engine while it is still being downloaded.
+ *
+ * Single byte ranges of the package are served, and a request blocks until the chunks it covers
+ * have arrived, so payload application proceeds at the pace of the download. The path contains a
+ * random token so that other local clients cannot guess it.
+ */
+final class LocalPackageServer implements AutoCloseable {
+    private static final int TRANSFER_SIZE = 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int TOKEN_LENGTH = 16;
+
+    private final FileChannel file;
+    private final long length;
+    private final Downloader downloader;
+    private final ServerSocketChannel server;
+    private final String path;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+
+    LocalPackageServer(final File file, final Downloader downloader) throws IOException {
+        this.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.length = downloader.getContentLength();
+        this.downloader = downloader;
+        final byte[] token = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(token);
+        final StringBuilder builder = new StringBuilder("/");
+        for (final byte b : token) {
+            builder.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        path = builder.append('/').append(file.getName()).toString();
+        try {
+            server = ServerSocketChannel.open();
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+        try {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        executor.execute(this::accept);
+    }
+
+    String getUrl() throws IOException {
+        final InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + path;
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final SocketChannel client = server.accept();
+                clients.add(client);
+                executor.execute(() -> serve(client));
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(final SocketChannel client) {
+        try (final InputStream input = new BufferedInputStream(Channels.newInputStream(client))) {
+            while (handle(client, input)) {
+            }
+        } catch (IOException | InterruptedException e) {
+            // the client gets a truncated response and retries or fails the payload application
+        } finally {
+            clients.remove(client);
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Answers one request and returns whether the connection can be used for another one.
+     */
+    private boolean handle(final SocketChannel client, final InputStream input)
+            throws IOException, InterruptedException {
+        final String requestLine = readLine(input);
+        if (requestLine == null) {
+            return false;
+        }
+        String range = null;
+        boolean keepAlive = !requestLine.endsWith("HTTP/1.0");
+        for (String line; !(line = readHeaderLine(input)).isEmpty(); ) {
+            final int colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            final String name = line.substring(0, colon).trim();
+            final String value = line.substring(colon + 1).trim();
+            if ("Range".equalsIgnoreCase(name)) {
+                range = value;
+            } else if ("Connection".equalsIgnoreCase(name) && "close".equalsIgnoreCase(value)) {
+                keepAlive = false;
+            }
+        }
+
+        final String[] request = requestLine.split(" ");
+        if (request.length != 3 || !path.equals(request[1])) {
+            sendHeaders(client, "404 Not Found", "Content-Length: 0\r\n");
+            return keepAlive;
+        }
+        final boolean head = "HEAD".equals(request[0]);
+        if (!head && !"GET".equals(request[0])) {
+            sendHeaders(client, "405 Method Not Allowed", "Content-Length: 0\r\n");
+            return keepAlive;
+        }
+
+        long start = 0;
+        long end = length;
+        String status = "200 OK";
+        if (range != null) {
+            final long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                sendHeaders(client, "416 Range Not Satisfiable",
+                        "Content-Range: bytes */" + length + "\r\nContent-Length: 0\r\n");
+                return keepAlive;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            status = "206 Partial Content";
+        }
+        sendHeaders(client, status, "Accept-Ranges: bytes\r\n" +
+                (range != null ? "Content-Range: bytes " + start + "-" + (end - 1) + "/" + length + "\r\n" : "") +
+                "Content-Length: " + (end - start) + "\r\n" +
+                (keepAlive ? "" : "Connection: close\r\n"));
+        if (!head) {
+            transfer(client, start, end);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Returns the [start, end) bounds of a single byte range of a file of the given length, or null
+     * if it is not satisfiable.
+     */
+    static long[] parseRange(final String range, final long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            final long start;
+            final long end;
+            if (dash == 0) {
+                final long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length :
+                        Math.min(length, Long.parseLong(spec.substring(dash + 1)) + 1);
+            }
+            return start < end ? new long[] {start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void transfer(final SocketChannel client, long position, final long end)
+            throws IOException, InterruptedException {
+        while (position < end) {
+            final long pieceEnd = Math.min(end, position + TRANSFER_SIZE);
+            downloader.await(position, pieceEnd);
+            final long transferred = file.transferTo(position, pieceEnd - position, client);
+            if (transferred <= 0) {
+                throw new IOException("short read at " + position);
+            }
+            position += transferred;
+        }
+    }
+
+    private static void sendHeaders(final SocketChannel client, final String status, final String headers)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\n" + headers + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    private static String readLine(final InputStream input) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (int c; (c = input.read()) != '\n'; ) {
+            if (c == -1) {
+                if (line.length() == 0) {
+                    return null;
+                }
+                throw new IOException("unexpected end of request");
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("request line too long");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String readHeaderLine(final InputStream input) throws IOException {
+        final String line = readLine(input);
+        if (line == null) {
+            throw new IOException("unexpected end of request");
+        }
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.close();
+            for (final SocketChannel client : clients) {
+                client.close();
+            }
+        } finally {
+            executor.shutdownNow();
+            file.close();
+        }
+    }
+}
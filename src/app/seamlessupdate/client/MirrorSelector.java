@@ -0,0 +1,315 @@
+package app.seamlessupdate.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses between the release mirrors, remembering their measurements across process restarts.
+ *
+ * The round trip time of every mirror is probed with a HEAD request about once a day, while the
+ * throughput is measured on the package downloads themselves rather than with transfers of its
+ * own. Requests go to the mirror expected to deliver a typical package the fastest, and move on
+ * to the next best one when it fails, skipping mirrors that failed recently.
+ */
+final class MirrorSelector {
+    private static final int VERSION = 1;
+    private static final long PROBE_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long FAILURE_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long TYPICAL_SIZE = 256 * 1024 * 1024;
+    /**
+     * Weight of a new throughput measurement against the previous ones.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    interface Opener {
+        HttpURLConnection open(String url) throws IOException;
+    }
+
+    private static final class Mirror {
+        final String url;
+        /**
+         * The read timeout of requests to the mirror, or 0 to keep the one set by the opener.
+         */
+        final int readTimeoutMillis;
+        long rttMillis = -1;
+        long bytesPerSecond = -1;
+        /**
+         * Wall clock time of the last failure, or 0 if there was none since the last probe.
+         */
+        long failedAt;
+
+        Mirror(final String url, final int readTimeoutMillis) {
+            this.url = url;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        HttpURLConnection open(final Opener opener, final String path) throws IOException {
+            final HttpURLConnection connection = opener.open(url + path);
+            if (readTimeoutMillis > 0) {
+                connection.setReadTimeout(readTimeoutMillis);
+            }
+            return connection;
+        }
+
+        boolean hasFailedRecently(final long now) {
+            return failedAt != 0 && now - failedAt < FAILURE_BACKOFF_MILLIS;
+        }
+    }
+
+    private final File file;
+    private final List<Mirror> mirrors = new ArrayList<>();
+    private Mirror current;
+    private long probedAt;
+
+    /**
+     * @param urls the base URLs of the mirrors, in order of preference while none are measured
+     * @param readTimeoutsMillis the read timeout of each mirror, such as a longer one for a local
+     * mirror that blocks while it fetches from upstream, with 0 or a missing entry keeping the
+     * timeout set by the opener
+     */
+    MirrorSelector(final File file, final List<String> urls, final int[] readTimeoutsMillis) {
+        this.file = file;
+        for (int i = 0; i < urls.size(); i++) {
+            mirrors.add(new Mirror(urls.get(i), i < readTimeoutsMillis.length ? readTimeoutsMillis[i] : 0));
+        }
+        current = mirrors.get(0);
+        load();
+    }
+
+    synchronized String getUrl() {
+        return current.url;
+    }
+
+    private synchronized Mirror getCurrent() {
+        return current;
+    }
+
+    synchronized boolean hasAlternatives() {
+        return mirrors.size() > 1;
+    }
+
+    /**
+     * Returns a connector sending every request to the current mirror, which moves a download on
+     * to the next mirror when a transfer fails.
+     */
+    Downloader.Connector getConnector(final Opener opener) {
+        // the mirror each connection was opened to, rather than a match on its URL, which may have
+        // been redirected and may start with the base URL of another mirror
+        final Map<HttpURLConnection, Mirror> opened = Collections.synchronizedMap(new WeakHashMap<>());
+        return new Downloader.Connector() {
+            @Override
+            public HttpURLConnection open(final String path) throws IOException {
+                final Mirror mirror = getCurrent();
+                final HttpURLConnection connection = mirror.open(opener, path);
+                opened.put(connection, mirror);
+                return connection;
+            }
+
+            @Override
+            public boolean failover(final HttpURLConnection connection) {
+                final Mirror mirror = opened.get(connection);
+                return mirror != null && MirrorSelector.this.failover(mirror);
+            }
+        };
+    }
+
+    /**
+     * Marks the mirror with the base URL url as failed, moving on to the best one that has not
+     * failed recently. Concurrent transfers failing on the same mirror only move once.
+     *
+     * @return true if requests now go to another mirror than the one that failed
+     */
+    synchronized boolean failover(final String url) {
+        final Mirror failed = find(url);
+        return failed != null && failover(failed);
+    }
+
+    private synchronized boolean failover(final Mirror failed) {
+        if (failed != current) {
+            return true;
+        }
+        failed.failedAt = System.currentTimeMillis();
+        final Mirror next = select(failed);
+        if (next != null) {
+            current = next;
+        }
+        save();
+        return next != null;
+    }
+
+    /**
+     * Probes the round trip time of every mirror with a HEAD request for path if they were not
+     * probed in the last PROBE_INTERVAL_MILLIS, and switches to the best one.
+     */
+    void probe(final Opener opener, final String path) {
+        final List<Mirror> probed;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (mirrors.size() < 2 || (now - probedAt >= 0 && now - probedAt < PROBE_INTERVAL_MILLIS)) {
+                return;
+            }
+            probedAt = now;
+            probed = new ArrayList<>(mirrors);
+        }
+        final Map<Mirror, Long> rtts = new HashMap<>();
+        for (final Mirror mirror : probed) {
+            long rtt = -1;
+            try {
+                final long start = System.nanoTime();
+                final HttpURLConnection connection = mirror.open(opener, path);
+                try {
+                    connection.setRequestMethod("HEAD");
+                    if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                        rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (IOException e) {
+                // counted as a failure below
+            }
+            rtts.put(mirror, rtt);
+        }
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            for (final Map.Entry<Mirror, Long> entry : rtts.entrySet()) {
+                final Mirror mirror = entry.getKey();
+                mirror.rttMillis = entry.getValue();
+                mirror.failedAt = mirror.rttMillis == -1 ? now : 0;
+            }
+            final Mirror best = select(null);
+            if (best != null) {
+                current = best;
+            }
+            save();
+        }
+    }
+
+    /**
+     * Records the throughput of a download that was served by the single mirror with the base URL
+     * url.
+     */
+    synchronized void onDownloaded(final String url, final long bytes, final long nanos) {
+        final Mirror mirror = find(url);
+        if (mirror == null || bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        final long measured = bytes * TimeUnit.SECONDS.toNanos(1) / nanos;
+        mirror.bytesPerSecond = mirror.bytesPerSecond <= 0 ? measured :
+                (long) (SMOOTHING * measured + (1 - SMOOTHING) * mirror.bytesPerSecond);
+        save();
+    }
+
+    synchronized void dump(final PrintWriter writer) {
+        for (final Mirror mirror : mirrors) {
+            writer.println(String.format(Locale.ROOT, "  %s%s: rtt %d ms, %d bytes/s%s",
+                    mirror == current ? "* " : "", mirror.url, mirror.rttMillis, mirror.bytesPerSecond,
+                    mirror.failedAt == 0 ? "" : ", failed at " + mirror.failedAt));
+        }
+    }
+
+    private Mirror find(final String url) {
+        for (final Mirror mirror : mirrors) {
+            if (mirror.url.equals(url)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the mirror with the lowest expected time for a typical package among the ones that
+     * have not failed recently, other than excluded, or null if there is none.
+     */
+    private Mirror select(final Mirror excluded) {
+        final long now = System.currentTimeMillis();
+        // mirrors without a throughput measurement are assumed to match the best one, so that they
+        // get tried and measured
+        long bestThroughput = -1;
+        for (final Mirror mirror : mirrors) {
+            bestThroughput = Math.max(bestThroughput, mirror.bytesPerSecond);
+        }
+        Mirror best = null;
+        long bestMillis = Long.MAX_VALUE;
+        for (final Mirror mirror : mirrors) {
+            if (mirror == excluded || mirror.hasFailedRecently(now)) {
+                continue;
+            }
+            final long throughput = mirror.bytesPerSecond > 0 ? mirror.bytesPerSecond : bestThroughput;
+            final long millis = Math.max(0, mirror.rttMillis) +
+                    (throughput > 0 ? TYPICAL_SIZE * 1000 / throughput : 0);
+            if (millis < bestMillis) {
+                best = mirror;
+                bestMillis = millis;
+            }
+        }
+        return best;
+    }
+
+    private void load() {
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (input.readInt() != VERSION) {
+                return;
+            }
+            probedAt = input.readLong();
+            final String selected = input.readUTF();
+            for (int count = input.readInt(); count > 0; count--) {
+                final String url = input.readUTF();
+                final long rttMillis = input.readLong();
+                final long bytesPerSecond = input.readLong();
+                final long failedAt = input.readLong();
+                // mirrors removed from the configuration are forgotten
+                for (final Mirror mirror : mirrors) {
+                    if (mirror.url.equals(url)) {
+                        mirror.rttMillis = rttMillis;
+                        mirror.bytesPerSecond = bytesPerSecond;
+                        mirror.failedAt = failedAt;
+                    }
+                    if (mirror.url.equals(selected)) {
+                        current = mirror;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // a missing or unreadable file is replaced by the next save
+        }
+    }
+
+    private void save() {
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (final DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp))) {
+                output.writeInt(VERSION);
+                output.writeLong(probedAt);
+                output.writeUTF(current.url);
+                output.writeInt(mirrors.size());
+                for (final Mirror mirror : mirrors) {
+                    output.writeUTF(mirror.url);
+                    output.writeLong(mirror.rttMillis);
+                    output.writeLong(mirror.bytesPerSecond);
+                    output.writeLong(mirror.failedAt);
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to write " + file);
+            }
+        } catch (IOException e) {
+            // the measurements are only an optimization, and are taken again if they are lost
+        }
+    }
+}
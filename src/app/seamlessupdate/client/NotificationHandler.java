@@ -8,6 +8,8 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 
+import java.util.Arrays;
+
 import app.seamlessupdate.client.ui.MainActivity;
 
 import static android.app.NotificationManager.IMPORTANCE_LOW;
@@ -24,43 +26,43 @@ public class NotificationHandler {
 
     private final Context context;
     private final NotificationManager notificationManager;
+    private final PendingIntent settingsIntent;
+    /**
+     * Reused for every progress update, which only changes the title and the progress.
+     */
+    private final Notification.Builder progressBuilder;
 
     NotificationHandler(Context context) {
         this.context = context;
         this.notificationManager = context.getSystemService(NotificationManager.class);
-        createProgressNotificationChannel();
+        createNotificationChannels();
+        settingsIntent = PendingIntent.getActivity(context, PENDING_SETTINGS_ID, new Intent(context, MainActivity.class), 0);
+        progressBuilder = new Notification.Builder(context, NOTIFICATION_CHANNEL_ID_PROGRESS)
+                .setContentIntent(settingsIntent)
+                .setOngoing(true)
+                .setSmallIcon(R.drawable.ic_system_update_white_24dp);
     }
 
     void showDownloadNotification(IntentService service, int progress, int max) {
-        String title = context.getString(R.string.notification_download_title);
-        Notification.Builder builder = new Notification.Builder(context, NOTIFICATION_CHANNEL_ID_PROGRESS)
-                .setContentIntent(getPendingSettingsIntent())
-                .setContentTitle(title)
-                .setOngoing(true)
-                .setSmallIcon(R.drawable.ic_system_update_white_24dp);
-        if (max <= 0) builder.setProgress(0, 0, true);
-        else builder.setProgress(max, progress, false);
+        progressBuilder.setContentTitle(context.getString(R.string.notification_download_title));
+        if (max <= 0) progressBuilder.setProgress(0, 0, true);
+        else progressBuilder.setProgress(max, progress, false);
 
         /* We need startForeground to not allow Android to close
         * service when we close MainActivity */
-        service.startForeground(NOTIFICATION_ID_PROGRESS, builder.build());
+        service.startForeground(NOTIFICATION_ID_PROGRESS, progressBuilder.build());
     }
 
-    void cancelDownloadNotification() {
+    void cancelProgressNotification() {
         notificationManager.cancel(NOTIFICATION_ID_PROGRESS);
     }
 
     void showRebootNotification() {
         final PendingIntent reboot = PendingIntent.getBroadcast(context, PENDING_REBOOT_ID, new Intent(context, RebootReceiver.class), 0);
 
-        final NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
-                context.getString(R.string.notification_channel), NotificationManager.IMPORTANCE_HIGH);
-        channel.enableLights(true);
-        channel.enableVibration(true);
-        notificationManager.createNotificationChannel(channel);
         notificationManager.notify(NOTIFICATION_ID_REBOOT, new Notification.Builder(context, NOTIFICATION_CHANNEL_ID)
                 .addAction(R.drawable.ic_restart, context.getString(R.string.notification_reboot_action), reboot)
-                .setContentIntent(getPendingSettingsIntent())
+                .setContentIntent(settingsIntent)
                 .setContentTitle(context.getString(R.string.notification_title))
                 .setContentText(context.getString(R.string.notification_text))
                 .setOngoing(true)
@@ -69,31 +71,17 @@ public class NotificationHandler {
     }
 
     void showInstallNotification(IntentService service, int progress, int max) {
-        String title = context.getString(R.string.notification_install_title);
-        Notification.Builder builder = new Notification.Builder(context, NOTIFICATION_CHANNEL_ID_PROGRESS)
-                .setContentIntent(getPendingSettingsIntent())
-                .setContentTitle(title)
-                .setOngoing(true)
-                .setProgress(max, progress, false)
-                .setSmallIcon(R.drawable.ic_system_update_white_24dp);
+        progressBuilder.setContentTitle(context.getString(R.string.notification_install_title))
+                .setProgress(max, progress, false);
 
         /* We need startForeground to not allow Android to close
          * service when we close MainActivity */
-        service.startForeground(NOTIFICATION_ID_PROGRESS, builder.build());
-    }
-
-    void cancelInstallNotification() {
-        notificationManager.cancel(NOTIFICATION_ID_PROGRESS);
+        service.startForeground(NOTIFICATION_ID_PROGRESS, progressBuilder.build());
     }
 
     void showUpdateAvailableNotification() {
-        final NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
-                context.getString(R.string.notification_new_update_title), NotificationManager.IMPORTANCE_HIGH);
-        channel.enableLights(true);
-        channel.enableVibration(true);
-        notificationManager.createNotificationChannel(channel);
         notificationManager.notify(NOTIFICATION_ID_UPDATE_AVAILABLE, new Notification.Builder(context, NOTIFICATION_CHANNEL_ID)
-                .setContentIntent(getPendingSettingsIntent())
+                .setContentIntent(settingsIntent)
                 .setContentTitle( context.getString(R.string.checking_for_updates ) )
                 .setContentText( context.getString(R.string.notification_new_update_title ) )
                 .setOngoing(true)
@@ -106,14 +94,17 @@ public class NotificationHandler {
         notificationManager.cancel(NOTIFICATION_ID_UPDATE_AVAILABLE);
     }
 
-    private void createProgressNotificationChannel() {
-        final NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID_PROGRESS,
+    /**
+     * Creates the channels once per service instance rather than before every notification.
+     */
+    private void createNotificationChannels() {
+        final NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                context.getString(R.string.notification_channel), NotificationManager.IMPORTANCE_HIGH);
+        channel.enableLights(true);
+        channel.enableVibration(true);
+        final NotificationChannel progressChannel = new NotificationChannel(NOTIFICATION_CHANNEL_ID_PROGRESS,
                 context.getString(R.string.notification_channel_progress), IMPORTANCE_LOW);
-        notificationManager.createNotificationChannel(channel);
-    }
-
-    private PendingIntent getPendingSettingsIntent() {
-        return PendingIntent.getActivity(context, PENDING_SETTINGS_ID, new Intent(context, MainActivity.class), 0);
+        notificationManager.createNotificationChannels(Arrays.asList(channel, progressChannel));
     }
 
 }
@@ -0,0 +1,177 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader for the small entries of an A/B OTA package, used instead of scanning it with ZipFile.
+ *
+ * Only the central directory and the metadata are parsed. The other entries are located through
+ * the offsets listed in ota-streaming-property-files, which point straight at their stored data, and
+ * read with positional reads.
+ */
+final class OtaPackage implements AutoCloseable {
+    static final String METADATA_ENTRY = "META-INF/com/android/metadata";
+
+    /**
+     * The fields of META-INF/com/android/metadata the updater acts on.
+     */
+    static final class Metadata {
+        final String device;
+        final String serialno;
+        final String type;
+        final String sourceIncremental;
+        final String sourceFingerprint;
+        final long timestamp;
+        /**
+         * Offset and size of each entry listed in ota-streaming-property-files.
+         */
+        final Map<String, long[]> propertyFiles;
+
+        private Metadata(final String device, final String serialno, final String type,
+                final String sourceIncremental, final String sourceFingerprint, final long timestamp,
+                final Map<String, long[]> propertyFiles) {
+            this.device = device;
+            this.serialno = serialno;
+            this.type = type;
+            this.sourceIncremental = sourceIncremental;
+            this.sourceFingerprint = sourceFingerprint;
+            this.timestamp = timestamp;
+            this.propertyFiles = propertyFiles;
+        }
+
+        /**
+         * Parses the key=value lines of the metadata in a single pass, decoding only the values of
+         * the keys it knows.
+         */
+        static Metadata parse(final byte[] data) throws IOException {
+            String device = null;
+            String serialno = null;
+            String type = null;
+            String sourceIncremental = null;
+            String sourceFingerprint = null;
+            String timestamp = null;
+            String propertyFiles = null;
+            for (int start = 0; start < data.length; ) {
+                int end = start;
+                int separator = -1;
+                while (end < data.length && data[end] != '\n') {
+                    if (separator == -1 && data[end] == '=') {
+                        separator = end;
+                    }
+                    end++;
+                }
+                if (separator != -1) {
+                    final int valueEnd = end > separator + 1 && data[end - 1] == '\r' ? end - 1 : end;
+                    if (matches(data, start, separator, "post-timestamp")) {
+                        timestamp = decode(data, separator + 1, valueEnd);
+                    } else if (matches(data, start, separator, "serialno")) {
+                        serialno = decode(data, separator + 1, valueEnd);
+                    } else if (matches(data, start, separator, "pre-device")) {
+                        device = decode(data, separator + 1, valueEnd);
+                    } else if (matches(data, start, separator, "ota-type")) {
+                        type = decode(data, separator + 1, valueEnd);
+                    } else if (matches(data, start, separator, "ota-streaming-property-files")) {
+                        propertyFiles = decode(data, separator + 1, valueEnd);
+                    } else if (matches(data, start, separator, "pre-build-incremental")) {
+                        sourceIncremental = decode(data, separator + 1, valueEnd);
+                    } else if (matches(data, start, separator, "pre-build")) {
+                        sourceFingerprint = decode(data, separator + 1, valueEnd);
+                    }
+                }
+                start = end + 1;
+            }
+            try {
+                return new Metadata(device, serialno, type, sourceIncremental, sourceFingerprint,
+                        timestamp == null ? 0 : Long.parseLong(timestamp),
+                        parsePropertyFiles(propertyFiles));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid package metadata", e);
+            }
+        }
+
+        private static Map<String, long[]> parsePropertyFiles(final String value) {
+            final Map<String, long[]> files = new HashMap<>();
+            if (value == null) {
+                return files;
+            }
+            for (final String file : value.trim().split(",")) {
+                final String[] fields = file.trim().split(":");
+                if (fields.length == 3) {
+                    files.put(fields[0], new long[] {Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+                }
+            }
+            return files;
+        }
+
+        private static boolean matches(final byte[] data, final int start, final int end, final String key) {
+            if (end - start != key.length()) {
+                return false;
+            }
+            for (int i = 0; i < key.length(); i++) {
+                if (data[start + i] != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String decode(final byte[] data, final int start, final int end) {
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final FileChannel channel;
+    private final ZipDirectory.Source source;
+    private final ZipDirectory zip;
+    private final Metadata metadata;
+
+    /**
+     * Opens a package and parses its metadata, if it has any.
+     */
+    OtaPackage(final File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            source = ZipDirectory.newSource(channel);
+            zip = ZipDirectory.read(source, channel.size());
+            final ZipDirectory.Entry entry = zip.getEntry(METADATA_ENTRY);
+            metadata = entry == null ? null : Metadata.parse(zip.read(entry));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the parsed metadata, or null if the package does not have any.
+     */
+    Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the contents of a small entry, or null if the package does not have it.
+     */
+    byte[] read(final String name) throws IOException {
+        final long[] range = metadata == null ? null : metadata.propertyFiles.get(name);
+        if (range != null && range[0] >= 0 && range[1] >= 0 && range[1] <= Integer.MAX_VALUE &&
+                range[0] + range[1] <= channel.size()) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) range[1]);
+            source.read(buffer, range[0]);
+            return buffer.array();
+        }
+        final ZipDirectory.Entry entry = zip.getEntry(name);
+        return entry == null ? null : zip.read(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,251 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The signed index of the builds and packages published for a device, from which the update check
+ * and the choice of packages are made without probing the server.
+ *
+ * The index is made of space separated lines:
+ *
+ *   device NAME
+ *   interval SECONDS                            the recommended poll interval, optional
+ *   channel NAME INCREMENTAL                    the release of a channel
+ *   build INCREMENTAL BUILD_DATE
+ *   package NAME SOURCE TARGET SIZE SHA256      SOURCE is "-" for a full package
+ *
+ * and ends with a "signature BASE64" line over all the bytes before it, made with one of the OTA
+ * keys. The signature is checked before anything is parsed. Unknown lines are skipped so that the
+ * format can grow.
+ */
+final class PackageIndex {
+    private static final String SIGNATURE_PREFIX = "signature ";
+
+    static final class Entry {
+        final String name;
+        /**
+         * The build the package applies to, or null for a full package.
+         */
+        final String sourceIncremental;
+        final String targetIncremental;
+        final long targetBuildDate;
+        final long size;
+        /**
+         * The SHA-256 of the whole package.
+         */
+        final byte[] sha256;
+
+        Entry(final String name, final String sourceIncremental, final String targetIncremental,
+                final long targetBuildDate, final long size, final byte[] sha256) {
+            this.name = name;
+            this.sourceIncremental = sourceIncremental;
+            this.targetIncremental = targetIncremental;
+            this.targetBuildDate = targetBuildDate;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + size + " bytes)";
+        }
+    }
+
+    final String device;
+    /**
+     * The poll interval recommended by the server, or 0 if it gave none.
+     */
+    final long intervalMillis;
+    private final Map<String, String> channels;
+    private final Map<String, Long> builds;
+    private final List<Entry> packages;
+
+    private PackageIndex(final String device, final long intervalMillis, final Map<String, String> channels,
+            final Map<String, Long> builds, final List<Entry> packages) {
+        this.device = device;
+        this.intervalMillis = intervalMillis;
+        this.channels = channels;
+        this.builds = builds;
+        this.packages = packages;
+    }
+
+    static String getSignatureAlgorithm(final Key key) {
+        return "EC".equals(key.getAlgorithm()) ? "SHA256withECDSA" : "SHA256with" + key.getAlgorithm();
+    }
+
+    /**
+     * Verifies the signature of the index against the trusted keys and parses it.
+     *
+     * @throws SignatureException if the index is not signed by any of the trusted keys
+     * @throws IOException if the index is malformed
+     */
+    static PackageIndex parse(final byte[] body, final List<PublicKey> trusted)
+            throws IOException, GeneralSecurityException {
+        int end = body.length;
+        if (end > 0 && body[end - 1] == '\n') {
+            end--;
+        }
+        int signedLength = end;
+        while (signedLength > 0 && body[signedLength - 1] != '\n') {
+            signedLength--;
+        }
+        final String last = new String(body, signedLength, end - signedLength, StandardCharsets.UTF_8);
+        if (!last.startsWith(SIGNATURE_PREFIX)) {
+            throw new SignatureException("index is not signed");
+        }
+        final byte[] signature;
+        try {
+            signature = Base64.getDecoder().decode(last.substring(SIGNATURE_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new SignatureException("invalid index signature", e);
+        }
+        boolean verified = false;
+        for (final PublicKey key : trusted) {
+            final Signature verifier = Signature.getInstance(getSignatureAlgorithm(key));
+            verifier.initVerify(key);
+            verifier.update(body, 0, signedLength);
+            try {
+                if (verifier.verify(signature)) {
+                    verified = true;
+                    break;
+                }
+            } catch (SignatureException e) {
+                // a signature made with a key of another type
+            }
+        }
+        if (!verified) {
+            throw new SignatureException("index signature doesn't match any trusted key");
+        }
+        return parse(new String(body, 0, signedLength, StandardCharsets.UTF_8));
+    }
+
+    private static PackageIndex parse(final String text) throws IOException {
+        String device = null;
+        long intervalMillis = 0;
+        final Map<String, String> channels = new HashMap<>();
+        final Map<String, Long> builds = new HashMap<>();
+        final List<String[]> packageLines = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new StringReader(text));
+        for (String line; (line = reader.readLine()) != null; ) {
+            final String[] fields = line.split(" ");
+            try {
+                if ("device".equals(fields[0]) && fields.length == 2) {
+                    device = fields[1];
+                } else if ("interval".equals(fields[0]) && fields.length == 2) {
+                    intervalMillis = Math.max(0, Math.min(Long.parseLong(fields[1]), Integer.MAX_VALUE)) * 1000;
+                } else if ("channel".equals(fields[0]) && fields.length == 3) {
+                    channels.put(fields[1], fields[2]);
+                } else if ("build".equals(fields[0]) && fields.length == 3) {
+                    builds.put(fields[1], Long.parseLong(fields[2]));
+                } else if ("package".equals(fields[0]) && fields.length == 6) {
+                    packageLines.add(fields);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid index line: " + line, e);
+            }
+        }
+        if (device == null) {
+            throw new IOException("index names no device");
+        }
+
+        final List<Entry> packages = new ArrayList<>();
+        for (final String[] fields : packageLines) {
+            final Long targetBuildDate = builds.get(fields[3]);
+            if (targetBuildDate == null) {
+                throw new IOException("index lists no build " + fields[3] + " for package " + fields[1]);
+            }
+            try {
+                packages.add(new Entry(fields[1], "-".equals(fields[2]) ? null : fields[2], fields[3],
+                        targetBuildDate, Long.parseLong(fields[4]), parseHex(fields[5])));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("invalid package " + fields[1] + " in index", e);
+            }
+        }
+        // build dates only increase along a chain, so packages are relaxed in topological order
+        packages.sort((a, b) -> Long.compare(a.targetBuildDate, b.targetBuildDate));
+        return new PackageIndex(device, intervalMillis, channels, builds, packages);
+    }
+
+    private static byte[] parseHex(final String hex) {
+        if (hex.length() != 2 * PackageVerifier.DIGEST_LENGTH) {
+            throw new IllegalArgumentException("invalid SHA-256 " + hex);
+        }
+        final byte[] bytes = new byte[PackageVerifier.DIGEST_LENGTH];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the release of the channel, or null if the index has none.
+     */
+    String getRelease(final String channel) {
+        return channels.get(channel);
+    }
+
+    /**
+     * Returns the build date of a build, or -1 if the index does not list it.
+     */
+    long getBuildDate(final String incremental) {
+        final Long date = builds.get(incremental);
+        return date == null ? -1 : date;
+    }
+
+    /**
+     * Returns the packages to apply in turn to reach the target from the installed build with the
+     * fewest bytes, fewer steps breaking ties, or null if the index has no way there. Each step
+     * moves to a newer build, and a full package is only ever the first step since it does not
+     * depend on the build it is applied to.
+     */
+    List<Entry> plan(final String sourceIncremental, final long sourceBuildDate, final String targetIncremental) {
+        final Map<String, Long> bytes = new HashMap<>();
+        final Map<String, Integer> steps = new HashMap<>();
+        final Map<String, Entry> previous = new HashMap<>();
+        bytes.put(sourceIncremental, 0L);
+        steps.put(sourceIncremental, 0);
+        for (final Entry entry : packages) {
+            final String from = entry.sourceIncremental == null ? sourceIncremental : entry.sourceIncremental;
+            final Long fromBytes = bytes.get(from);
+            // a build that is reachable is either the installed one or the target of a package,
+            // which parse only accepts with a build date
+            if (fromBytes == null || entry.targetBuildDate <=
+                    (from.equals(sourceIncremental) ? sourceBuildDate : getBuildDate(from))) {
+                continue;
+            }
+            final long toBytes = fromBytes + entry.size;
+            final int toSteps = steps.get(from) + 1;
+            final Long best = bytes.get(entry.targetIncremental);
+            if (best == null || toBytes < best || (toBytes == best && toSteps < steps.get(entry.targetIncremental))) {
+                bytes.put(entry.targetIncremental, toBytes);
+                steps.put(entry.targetIncremental, toSteps);
+                previous.put(entry.targetIncremental, entry);
+            }
+        }
+        if (!previous.containsKey(targetIncremental)) {
+            return null;
+        }
+        final List<Entry> plan = new ArrayList<>();
+        for (String node = targetIncremental; !node.equals(sourceIncremental); ) {
+            final Entry entry = previous.get(node);
+            plan.add(entry);
+            node = entry.sourceIncremental == null ? sourceIncremental : entry.sourceIncremental;
+        }
+        Collections.reverse(plan);
+        return plan;
+    }
+}
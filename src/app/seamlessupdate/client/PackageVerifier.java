@@ -0,0 +1,349 @@
+package app.seamlessupdate.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Verifies the whole-file signature of an OTA package from a digest that was computed while the
+ * package was being downloaded.
+ *
+ * The signed region ends right before the zip comment length, which is only known once the footer
+ * arrives. Hashing during the download therefore stops at the largest possible comment size and
+ * the final check only has to read the footer, the signature block and the last few kilobytes.
+ *
+ * The digest state lives only in memory. A download resumed by another process hashes the prefix
+ * it already has again, reading it back from storage.
+ */
+class PackageVerifier {
+    static final int DIGEST_LENGTH = 32;
+    private static final int FOOTER_SIZE = 6;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String OID_SHA256 = "2.16.840.1.101.3.4.2.1";
+    private static final byte[] SHA256_DIGEST_INFO_PREFIX = {
+        0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02,
+        0x01, 0x05, 0x00, 0x04, 0x20
+    };
+
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_SET = 0x31;
+    private static final int TAG_CONTEXT_0 = 0xa0;
+    private static final int TAG_CONTEXT_1 = 0xa1;
+
+    private final File file;
+    private final MessageDigest digest = ChunkMap.newDigest();
+    private long position;
+    private byte[] fileDigest;
+
+    PackageVerifier(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns how far the package can be hashed before its footer is known.
+     */
+    static long getLimit(final long contentLength) {
+        return Math.max(0, contentLength - MAX_COMMENT_SIZE - 2);
+    }
+
+    /**
+     * Returns the SHA-256 of the whole package, which is known once verify has read the footer.
+     */
+    byte[] getFileDigest() {
+        return fileDigest;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    void reset() {
+        digest.reset();
+        position = 0;
+    }
+
+    /**
+     * Hashes up to one buffer of the file, never going past end.
+     */
+    void update(final FileChannel channel, final long end, final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        final int bytesRead = channel.read(buffer, position);
+        if (bytesRead == -1) {
+            throw new IOException("unexpected end of file at " + position);
+        }
+        digest.update(buffer.array(), buffer.arrayOffset(), bytesRead);
+        position += bytesRead;
+    }
+
+    static List<X509Certificate> loadCertificates(final File certsZip) throws IOException, GeneralSecurityException {
+        final List<X509Certificate> certificates = new ArrayList<>();
+        final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        try (final ZipFile zip = new ZipFile(certsZip)) {
+            for (final Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                try (final InputStream input = zip.getInputStream(entries.nextElement())) {
+                    certificates.add((X509Certificate) factory.generateCertificate(input));
+                }
+            }
+        }
+        return certificates;
+    }
+
+    /**
+     * Finishes the digest from where the download left it and checks the signature against the
+     * trusted certificates, mirroring the checks done by RecoverySystem.verifyPackage.
+     *
+     * @return false if the signature uses a scheme that cannot be checked from a precomputed
+     * SHA-256 digest, in which case the caller has to fall back to a full verification
+     */
+    boolean verify(final List<X509Certificate> trusted) throws IOException, GeneralSecurityException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long fileLength = channel.size();
+            if (fileLength < FOOTER_SIZE + EOCD_SIZE) {
+                throw new SignatureException("package too short");
+            }
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(channel, footer, fileLength - FOOTER_SIZE);
+            final byte[] f = footer.array();
+            if ((f[2] & 0xff) != 0xff || (f[3] & 0xff) != 0xff) {
+                throw new SignatureException("no signature in file (no footer)");
+            }
+            final int commentSize = (f[4] & 0xff) | ((f[5] & 0xff) << 8);
+            final int signatureStart = (f[0] & 0xff) | ((f[1] & 0xff) << 8);
+            if (commentSize + EOCD_SIZE > fileLength || signatureStart > commentSize ||
+                    signatureStart < FOOTER_SIZE) {
+                throw new SignatureException("invalid footer");
+            }
+
+            final ByteBuffer eocdBuffer = ByteBuffer.allocate(commentSize + EOCD_SIZE);
+            readFully(channel, eocdBuffer, fileLength - eocdBuffer.capacity());
+            final byte[] eocd = eocdBuffer.array();
+            if (!isEocdMarker(eocd, 0)) {
+                throw new SignatureException("no signature in file (bad footer)");
+            }
+            for (int i = 4; i < eocd.length - 3; i++) {
+                if (isEocdMarker(eocd, i)) {
+                    throw new SignatureException("EOCD marker found after start of EOCD");
+                }
+            }
+
+            final long signedLength = fileLength - commentSize - 2;
+            if (position > signedLength) {
+                reset();
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (position < signedLength) {
+                update(channel, signedLength, buffer);
+            }
+
+            final byte[] signedDigest;
+            try {
+                signedDigest = ((MessageDigest) digest.clone()).digest();
+            } catch (CloneNotSupportedException e) {
+                throw new GeneralSecurityException(e);
+            }
+            // the unsigned rest of the file was read along with the footer
+            digest.update(eocd, eocd.length - commentSize - 2, commentSize + 2);
+            fileDigest = digest.digest();
+            position = 0;
+
+            return verifySignature(ByteBuffer.wrap(eocd, eocd.length - signatureStart, signatureStart),
+                    signedDigest, trusted);
+        }
+    }
+
+    private static boolean isEocdMarker(final byte[] b, final int i) {
+        return b[i] == 0x50 && b[i + 1] == 0x4b && b[i + 2] == 0x05 && b[i + 3] == 0x06;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            position += bytesRead;
+        }
+    }
+
+    private static boolean verifySignature(final ByteBuffer block, final byte[] packageDigest,
+            final List<X509Certificate> trusted) throws GeneralSecurityException {
+        final DerReader contentInfo = new DerReader(block).read(TAG_SEQUENCE);
+        if (!OID_SIGNED_DATA.equals(contentInfo.readOid())) {
+            throw new SignatureException("signature block is not signed data");
+        }
+        final DerReader signedData = contentInfo.read(TAG_CONTEXT_0).read(TAG_SEQUENCE);
+        signedData.read(TAG_INTEGER);
+        signedData.read(TAG_SET);
+        signedData.read(TAG_SEQUENCE);
+        final List<X509Certificate> certificates = new ArrayList<>();
+        if (signedData.peekTag() == TAG_CONTEXT_0) {
+            final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            final DerReader set = signedData.read(TAG_CONTEXT_0);
+            while (set.hasRemaining()) {
+                certificates.add((X509Certificate) factory.generateCertificate(
+                        new ByteArrayInputStream(set.readElement())));
+            }
+        }
+        if (signedData.peekTag() == TAG_CONTEXT_1) {
+            signedData.read(TAG_CONTEXT_1);
+        }
+        if (certificates.isEmpty()) {
+            throw new SignatureException("signature contains no certificates");
+        }
+
+        final PublicKey signatureKey = certificates.get(0).getPublicKey();
+        boolean verified = false;
+        for (final X509Certificate c : trusted) {
+            if (c.getPublicKey().equals(signatureKey)) {
+                verified = true;
+                break;
+            }
+        }
+        if (!verified) {
+            throw new SignatureException("signature doesn't match any trusted key");
+        }
+
+        final DerReader signerInfo = signedData.read(TAG_SET).read(TAG_SEQUENCE);
+        signerInfo.read(TAG_INTEGER);
+        signerInfo.read(TAG_SEQUENCE);
+        final String digestAlgorithm = signerInfo.read(TAG_SEQUENCE).readOid();
+        if (signerInfo.peekTag() == TAG_CONTEXT_0 || !OID_SHA256.equals(digestAlgorithm)) {
+            return false;
+        }
+        signerInfo.read(TAG_SEQUENCE);
+        final byte[] encryptedDigest = signerInfo.read(TAG_OCTET_STRING).toByteArray();
+
+        final Signature signature;
+        if (signatureKey instanceof RSAPublicKey) {
+            signature = Signature.getInstance("NONEwithRSA");
+            signature.initVerify(signatureKey);
+            signature.update(SHA256_DIGEST_INFO_PREFIX);
+        } else if (signatureKey instanceof ECPublicKey) {
+            signature = Signature.getInstance("NONEwithECDSA");
+            signature.initVerify(signatureKey);
+        } else {
+            return false;
+        }
+        signature.update(packageDigest);
+        if (!signature.verify(encryptedDigest)) {
+            throw new SignatureException("signature digest verification failed");
+        }
+        return true;
+    }
+
+    private static final class DerReader {
+        private final ByteBuffer buffer;
+
+        DerReader(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean hasRemaining() {
+            return buffer.hasRemaining();
+        }
+
+        int peekTag() {
+            return buffer.hasRemaining() ? buffer.get(buffer.position()) & 0xff : -1;
+        }
+
+        DerReader read(final int tag) throws SignatureException {
+            final int start = buffer.position();
+            final int length = readHeader();
+            if ((buffer.get(start) & 0xff) != tag) {
+                throw new SignatureException("unexpected DER tag " + (buffer.get(start) & 0xff));
+            }
+            final ByteBuffer content = buffer.slice();
+            content.limit(length);
+            buffer.position(buffer.position() + length);
+            return new DerReader(content);
+        }
+
+        byte[] readElement() throws SignatureException {
+            final int start = buffer.position();
+            final int length = readHeader();
+            final byte[] element = new byte[buffer.position() - start + length];
+            buffer.position(start);
+            buffer.get(element);
+            return element;
+        }
+
+        byte[] toByteArray() {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        String readOid() throws SignatureException {
+            final DerReader oid = read(TAG_OID);
+            if (!oid.hasRemaining()) {
+                throw new SignatureException("empty object identifier");
+            }
+            final StringBuilder builder = new StringBuilder();
+            long value = 0;
+            boolean first = true;
+            while (oid.buffer.hasRemaining()) {
+                final int b = oid.buffer.get() & 0xff;
+                value = (value << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    if (first) {
+                        final long root = Math.min(value / 40, 2);
+                        builder.append(root).append('.').append(value - root * 40);
+                        first = false;
+                    } else {
+                        builder.append('.').append(value);
+                    }
+                    value = 0;
+                }
+            }
+            return builder.toString();
+        }
+
+        private int readHeader() throws SignatureException {
+            if (buffer.remaining() < 2) {
+                throw new SignatureException("truncated DER element");
+            }
+            buffer.get();
+            int length = buffer.get() & 0xff;
+            if ((length & 0x80) != 0) {
+                final int count = length & 0x7f;
+                if (count == 0 || count > 3 || buffer.remaining() < count) {
+                    throw new SignatureException("unsupported DER length");
+                }
+                length = 0;
+                for (int i = 0; i < count; i++) {
+                    length = (length << 8) | (buffer.get() & 0xff);
+                }
+            }
+            if (length > buffer.remaining()) {
+                throw new SignatureException("truncated DER element");
+            }
+            return length;
+        }
+    }
+}
@@ -12,26 +12,26 @@ import android.os.SystemProperties;
 import android.util.Log;
 
 import java.util.Objects;
+import java.util.Random;
 
 public class PeriodicJob extends JobService {
     private static final String TAG = "PeriodicJob";
     private static final int JOB_ID_PERIODIC = 1;
     private static final int JOB_ID_RETRY = 2;
-    private static final long INTERVAL_MILLIS = 4 * 60 * 60 * 1000;
-    private static final long MIN_LATENCY_MILLIS = 4 * 60 * 1000;
     private static final String EXTRA_JOB_CHANNEL = "extra_job_channel";
 
     public static void schedule(final Context context, final boolean force) {
         final String channel = SystemProperties.get("sys.update.channel", Settings.getChannel(context));
         final int networkType = Settings.getNetworkType(context);
         final boolean batteryNotLow = Settings.getBatteryNotLow(context);
+        final long intervalMillis = Settings.getCheckInterval(context);
         final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
         final JobInfo jobInfo = scheduler.getPendingJob(JOB_ID_PERIODIC);
         if (!force && jobInfo != null &&
                 jobInfo.getNetworkType() == networkType &&
                 jobInfo.isRequireBatteryNotLow() == batteryNotLow &&
                 jobInfo.isPersisted() &&
-                jobInfo.getIntervalMillis() == INTERVAL_MILLIS &&
+                jobInfo.getIntervalMillis() == intervalMillis &&
                 Objects.equals(jobInfo.getExtras().getString(EXTRA_JOB_CHANNEL), channel)) {
             Log.d(TAG, "Periodic job already registered");
             return;
@@ -43,11 +43,13 @@ public class PeriodicJob extends JobService {
             .setRequiredNetworkType(networkType)
             .setRequiresBatteryNotLow(batteryNotLow)
             .setPersisted(true)
-            .setPeriodic(INTERVAL_MILLIS)
+            .setPeriodic(intervalMillis)
             .setExtras(extras)
             .build());
         if (result == JobScheduler.RESULT_FAILURE) {
             Log.d(TAG, "Periodic job schedule failed");
+        } else {
+            Log.d(TAG, "Periodic job scheduled every " + intervalMillis + " ms");
         }
     }
 
@@ -55,16 +57,43 @@ public class PeriodicJob extends JobService {
         schedule(context, false);
     }
 
-    static void scheduleRetry(final Context context) {
+    /**
+     * Schedules a retry after a failed check or download, backing off according to the kind of
+     * failure and the number of consecutive ones. See {@link CheckSchedule#getRetryDelayMillis}.
+     * The attempt count is recorded in the given transaction, committed by the caller.
+     */
+    static void scheduleRetry(final Context context, final Throwable failure,
+            final Settings.Transaction transaction) {
         final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        final int attempt = Settings.getRetryAttempt(context);
+        final long delay = CheckSchedule.getRetryDelayMillis(CheckSchedule.classify(failure), attempt,
+                CheckSchedule.getRetryAfterMillis(failure), new Random());
+        if (delay < 0) {
+            Log.d(TAG, "Not retrying before the next periodic check");
+            scheduler.cancel(JOB_ID_RETRY);
+            return;
+        }
+        transaction.setRetryAttempt(attempt + 1);
         final ComponentName serviceName = new ComponentName(context, PeriodicJob.class);
         final int result = scheduler.schedule(new JobInfo.Builder(JOB_ID_RETRY, serviceName)
             .setRequiredNetworkType(Settings.getNetworkType(context))
             .setRequiresBatteryNotLow(Settings.getBatteryNotLow(context))
-            .setMinimumLatency(MIN_LATENCY_MILLIS)
+            .setMinimumLatency(delay)
             .build());
         if (result == JobScheduler.RESULT_FAILURE) {
             Log.d(TAG, "Retry job schedule failed");
+        } else {
+            Log.d(TAG, "Retry " + (attempt + 1) + " scheduled in " + delay + " ms");
+        }
+    }
+
+    /**
+     * Resets the backoff after a successful attempt, dropping a retry that is still pending.
+     */
+    static void cancelRetry(final Context context, final Settings.Transaction transaction) {
+        if (Settings.getRetryAttempt(context) != 0) {
+            transaction.setRetryAttempt(0);
+            context.getSystemService(JobScheduler.class).cancel(JOB_ID_RETRY);
         }
     }
 
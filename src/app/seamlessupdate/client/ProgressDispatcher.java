@@ -0,0 +1,134 @@
+package app.seamlessupdate.client;
+
+import android.app.IntentService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Delivers download and install progress to the progress notification and the UI.
+ *
+ * Progress is reported far more often than it can be seen, by update_engine in particular, and
+ * every notification update is a binder call. Notification updates are therefore coalesced: the
+ * latest value is delivered from the main thread at most once per MIN_INTERVAL_MILLIS, and only
+ * if the percentage changed. The UI state is updated right away since it is rendered at most once
+ * per frame anyway.
+ *
+ * When downloading and installing at the same time, the notification follows the installation.
+ */
+final class ProgressDispatcher {
+    private static final long MIN_INTERVAL_MILLIS = 500;
+
+    private static final class Progress {
+        final boolean install;
+        boolean active;
+        long value;
+        long max;
+        int sentPercent = -1;
+
+        Progress(final boolean install) {
+            this.install = install;
+        }
+
+        void set(final long value, final long max) {
+            active = true;
+            this.value = value;
+            this.max = max;
+        }
+
+        int getPercent() {
+            return max > 0 ? (int) (value * 100 / max) : -1;
+        }
+
+        void reset() {
+            active = false;
+            sentPercent = -1;
+        }
+    }
+
+    private final IntentService service;
+    private final NotificationHandler notificationHandler;
+    private final UpdateState state;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flush = this::flush;
+    private final Progress download = new Progress(false);
+    private final Progress install = new Progress(true);
+    private Progress notified;
+    private boolean scheduled;
+    private long lastFlush = Long.MIN_VALUE / 2;
+
+    ProgressDispatcher(final IntentService service, final NotificationHandler notificationHandler,
+            final UpdateState state) {
+        this.service = service;
+        this.notificationHandler = notificationHandler;
+        this.state = state;
+    }
+
+    /**
+     * @param total the package size, or a non-positive value if it is not known yet
+     */
+    synchronized void onDownloadProgress(final long downloaded, final long total) {
+        download.set(downloaded, total);
+        state.setDownloadProgress(downloaded, total);
+        schedule();
+    }
+
+    synchronized void onInstallProgress(final int progress, final int max) {
+        install.set(progress, max);
+        state.setInstallProgress(progress, max);
+        schedule();
+    }
+
+    /**
+     * Ends the download progress, leaving the notification to an installation in progress.
+     */
+    synchronized void onDownloadFinished() {
+        download.reset();
+        if (!install.active) {
+            cancel();
+        } else if (notified == download) {
+            notified = null;
+        }
+    }
+
+    /**
+     * Drops pending updates and removes the progress notification.
+     */
+    synchronized void cancel() {
+        handler.removeCallbacks(flush);
+        scheduled = false;
+        download.reset();
+        install.reset();
+        notified = null;
+        notificationHandler.cancelProgressNotification();
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        handler.postDelayed(flush, Math.max(0, lastFlush + MIN_INTERVAL_MILLIS - SystemClock.uptimeMillis()));
+    }
+
+    private synchronized void flush() {
+        if (!scheduled) {
+            return;
+        }
+        scheduled = false;
+        lastFlush = SystemClock.uptimeMillis();
+        final Progress shown = install.active ? install : download.active ? download : null;
+        if (shown != null && (shown != notified || shown.getPercent() != shown.sentPercent)) {
+            // byte counts are scaled in long arithmetic, as they overflow an int above 2 GiB
+            final int scaled = UpdateState.scaleProgress(shown.value, shown.max);
+            final int max = scaled == -1 ? 0 : UpdateState.PROGRESS_MAX;
+            if (shown.install) {
+                notificationHandler.showInstallNotification(service, Math.max(scaled, 0), max);
+            } else {
+                notificationHandler.showDownloadNotification(service, Math.max(scaled, 0), max);
+            }
+            notified = shown;
+            shown.sentPercent = shown.getPercent();
+        }
+    }
+}
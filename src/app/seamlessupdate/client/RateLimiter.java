@@ -0,0 +1,68 @@
+package app.seamlessupdate.client;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by the connections of a download, holding them to a combined rate.
+ *
+ * Rather than refilling a token count, the bucket tracks the time at which all bytes consumed so
+ * far are paid for. Sleeping until that deadline keeps the long term rate exact regardless of the
+ * sleep granularity, since oversleeping is credited to the following reads.
+ */
+final class RateLimiter {
+    private static final long NANOS_PER_SECOND = 1000 * 1000 * 1000;
+    private static final long BURST_NANOS = 100 * 1000 * 1000;
+    private static final int MIN_QUANTUM = 4 * 1024;
+
+    private final long rate;
+    private long paidUntil;
+
+    /**
+     * @param rate bytes per second, or 0 for no limit
+     */
+    RateLimiter(final long rate) {
+        this.rate = rate;
+        paidUntil = System.nanoTime() - BURST_NANOS;
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns how many of length bytes to read at once, so that a read is paid for in about
+     * BURST_NANOS and progress stays smooth at low rates.
+     */
+    long limit(final long length) {
+        if (rate == 0) {
+            return length;
+        }
+        return Math.min(length, Math.max(MIN_QUANTUM, rate * BURST_NANOS / NANOS_PER_SECOND));
+    }
+
+    /**
+     * Accounts for bytes that were read, sleeping until they are paid for. Idle time accumulates
+     * credit for at most BURST_NANOS worth of bytes.
+     */
+    void acquire(final long bytes) throws InterruptedIOException {
+        if (rate == 0) {
+            return;
+        }
+        final long delay;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (now - paidUntil > BURST_NANOS) {
+                paidUntil = now - BURST_NANOS;
+            }
+            paidUntil += bytes * NANOS_PER_SECOND / rate;
+            delay = paidUntil - now;
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while limiting download rate");
+            }
+        }
+    }
+}
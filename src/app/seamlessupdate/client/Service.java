@@ -5,11 +5,13 @@ import static android.os.Build.FINGERPRINT;
 import static android.os.Build.VERSION.INCREMENTAL;
 import static android.os.UpdateEngine.UpdateStatusConstants.DOWNLOADING;
 import static android.os.UpdateEngine.UpdateStatusConstants.FINALIZING;
+import static android.os.UpdateEngine.UpdateStatusConstants.VERIFYING;
 
 import android.app.IntentService;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.Binder;
 import android.os.Build;
+import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.RecoverySystem;
@@ -17,21 +19,39 @@ import android.os.SystemProperties;
 import android.os.UpdateEngine;
 import android.os.UpdateEngine.ErrorCodeConstants;
 import android.os.UpdateEngineCallback;
+import android.os.storage.StorageManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -39,16 +59,31 @@ public class Service extends IntentService {
     private static final String TAG = "Service";
     private static final int CONNECT_TIMEOUT = 60000;
     private static final int READ_TIMEOUT = 60000;
+    /**
+     * Read timeout of downloads with other mirrors to fail over to, after which a transfer is
+     * considered stalled, unless the mirror has its own in the read_timeouts resource.
+     */
+    private static final int STALL_TIMEOUT = 15000;
+    private static final File OTACERTS_PATH = new File("/system/etc/security/otacerts.zip");
     private static final File CARE_MAP_PATH = new File("/data/ota_package/care_map.txt");
     static final File UPDATE_PATH = new File("/data/ota_package/update.zip");
-    private static final String PREFERENCE_DOWNLOAD_FILE = "download_file";
-    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final String HTTP_CACHE_DIRECTORY = "http";
+    private static final String METRICS_FILE = "update_metrics";
+    private static final String MIRRORS_FILE = "mirrors";
+    /**
+     * Times update_engine may fail to apply a package before it is discarded and downloaded again.
+     */
+    private static final int MAX_APPLY_ATTEMPTS = 3;
 
     public static final String SERVICE_ACTION_INSTALL = "install_update";
 
     private NotificationHandler notificationHandler;
-    private BroadcastHandler broadcastHandler;
-    private boolean mUpdating = false;
+    private UpdateState state;
+    private ProgressDispatcher progressDispatcher;
+    private UpdateJournal journal;
+    private UpdateMetrics metrics;
+    private MirrorSelector mirrors;
+    private volatile UpdateMetrics.Attempt attempt;
 
     public Service() {
         super(TAG);
@@ -57,165 +92,469 @@ public class Service extends IntentService {
     @Override
     public void onCreate() {
         super.onCreate();
+        Settings.init(this);
         notificationHandler = new NotificationHandler(this);
-        broadcastHandler = new BroadcastHandler(this);
+        state = new UpdateState(Settings.getIsWaitingForReboot(this) ?
+                Settings.UpdateStatus.UpdateDone : Settings.getUpdateStatus(this),
+                Settings.getAvailableUpdateVersion(this), Settings.getAvailableUpdateDate(this));
+        progressDispatcher = new ProgressDispatcher(this, notificationHandler, state);
+        journal = Settings.getJournal(this);
+        metrics = new UpdateMetrics(new File(createDeviceProtectedStorageContext().getFilesDir(), METRICS_FILE));
+        final List<String> urls = new ArrayList<>();
+        urls.add(getString(R.string.url));
+        urls.addAll(Arrays.asList(getResources().getStringArray(R.array.mirror_urls)));
+        final int[] readTimeouts = getResources().getIntArray(R.array.read_timeouts);
+        for (int i = 0; i < readTimeouts.length; i++) {
+            readTimeouts[i] = (int) TimeUnit.SECONDS.toMillis(readTimeouts[i]);
+        }
+        mirrors = new MirrorSelector(new File(createDeviceProtectedStorageContext().getFilesDir(), MIRRORS_FILE), urls,
+                readTimeouts);
+    }
+
+    /**
+     * Hands the UI the state of the service, which stays alive for as long as it is bound.
+     */
+    public final class LocalBinder extends Binder {
+        public UpdateState getState() {
+            return state;
+        }
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return new LocalBinder();
+    }
+
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        final UpdateMetrics.Attempt current = attempt;
+        if (current != null) {
+            writer.println("Current attempt:");
+            current.dump(writer);
+        }
+        final List<UpdateMetrics.Attempt> history = metrics.load();
+        writer.println("Recent attempts (" + history.size() + "):");
+        for (int i = history.size() - 1; i >= 0; i--) {
+            history.get(i).dump(writer);
+        }
+        writer.println("Mirrors:");
+        mirrors.dump(writer);
+    }
+
+    private static HttpURLConnection openUrl(final String url, final int readTimeout) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(readTimeout);
+        return connection;
+    }
+
+    /**
+     * Returns an allocator reserving the blocks of the package with fallocate, after clearing
+     * cached files of apps if that is what it takes to make room.
+     */
+    private Downloader.Allocator getAllocator() {
+        final StorageManager storageManager = getSystemService(StorageManager.class);
+        return new Downloader.Allocator() {
+            @Override
+            public long getAllocatableBytes(final File file) throws IOException {
+                return storageManager.getAllocatableBytes(storageManager.getUuidForPath(file));
+            }
+
+            @Override
+            public void allocate(final RandomAccessFile file, final long length) throws IOException {
+                storageManager.allocateBytes(file.getFD(), length);
+            }
+        };
     }
 
-    private URLConnection fetchData(final String path) throws IOException {
-        final URL url = new URL(getString(R.string.url) + path);
-        final URLConnection urlConnection = url.openConnection();
-        urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
-        urlConnection.setReadTimeout(READ_TIMEOUT);
-        return urlConnection;
+    private Downloader.Connector getDownloadConnector() {
+        final int readTimeout = mirrors.hasAlternatives() ? STALL_TIMEOUT : READ_TIMEOUT;
+        return mirrors.getConnector(url -> openUrl(url, readTimeout));
     }
 
-    private void applyUpdate(final long payloadOffset, final String[] headerKeyValuePairs) {
+    /**
+     * Work carried out while update_engine applies the payload. Throwing cancels the installation.
+     */
+    private interface ApplyTask {
+        void run() throws IOException, GeneralSecurityException;
+    }
+
+    private void applyUpdate(final String url, final long payloadOffset, final String[] headerKeyValuePairs,
+            final ApplyTask whileApplying) throws IOException, GeneralSecurityException {
         Settings.setUpdateStatus(this, Settings.UpdateStatus.Installing);
+        state.setStatus(Settings.UpdateStatus.Installing);
         final CountDownLatch monitor = new CountDownLatch(1);
+        final AtomicInteger result = new AtomicInteger();
+        // callbacks arrive on a binder thread, possibly after the attempt was finished
+        final UpdateMetrics.Attempt current = attempt;
         final UpdateEngine engine = new UpdateEngine();
         engine.bind(new UpdateEngineCallback() {
             @Override
             public void onStatusUpdate(int status, float percent) {
                 Log.d(TAG, "onStatusUpdate: " + status + ", " + percent * 100 + "%");
                 if (status == DOWNLOADING) {
-                    notificationHandler.showInstallNotification(Service.this, Math.round(percent * 100)/2, 100);
-                    broadcastHandler.sendUpdateInstallProgress(Math.round(percent * 100)/2, 100);
+                    current.onPhase(UpdateMetrics.PHASE_APPLY);
+                } else if (status == VERIFYING) {
+                    current.onPhase(UpdateMetrics.PHASE_VERIFY);
+                } else if (status == FINALIZING) {
+                    current.onPhase(UpdateMetrics.PHASE_FINALIZE);
+                }
+                if (status == DOWNLOADING) {
+                    progressDispatcher.onInstallProgress(Math.round(percent * 100)/2, 100);
                 } else if (status == FINALIZING) {
-                    notificationHandler.showInstallNotification(Service.this, Math.round(percent * 100)/2 + 50, 100);
-                    broadcastHandler.sendUpdateInstallProgress(Math.round(percent * 100)/2 + 50, 100);
+                    progressDispatcher.onInstallProgress(Math.round(percent * 100)/2 + 50, 100);
                 }
             }
 
             @Override
             public void onPayloadApplicationComplete(int errorCode) {
-                notificationHandler.cancelInstallNotification();
-                if (errorCode == ErrorCodeConstants.SUCCESS) {
-                    Log.d(TAG, "onPayloadApplicationComplete success");
-                    annoyUser();
-                } else {
-                    Log.d(TAG, "onPayloadApplicationComplete: " + errorCode);
-                    mUpdating = false;
-                }
-                UPDATE_PATH.delete();
+                progressDispatcher.cancel();
+                current.onPhase(-1);
+                result.set(errorCode);
                 monitor.countDown();
             }
         });
-        if (SystemProperties.getBoolean("sys.update.streaming_test", false)) {
-            Log.d(TAG, "streaming update test");
-            final SharedPreferences preferences = Settings.getPreferences(this);
-            final String downloadFile = preferences.getString(PREFERENCE_DOWNLOAD_FILE, null);
-            engine.applyPayload(getString(R.string.url) + downloadFile, payloadOffset, 0, headerKeyValuePairs);
+        try {
+            engine.applyPayload(url, payloadOffset, 0, headerKeyValuePairs);
+            if (whileApplying != null) {
+                try {
+                    whileApplying.run();
+                } catch (IOException | GeneralSecurityException e) {
+                    Log.d(TAG, "cancelling payload application");
+                    engine.cancel();
+                    awaitUninterruptibly(monitor);
+                    if (result.get() == ErrorCodeConstants.SUCCESS) {
+                        engine.resetStatus();
+                    }
+                    throw e;
+                }
+            }
+            awaitUninterruptibly(monitor);
+        } finally {
+            engine.unbind();
+        }
+        if (result.get() == ErrorCodeConstants.SUCCESS) {
+            Log.d(TAG, "onPayloadApplicationComplete success");
+            current.setResult("installed");
+            annoyUser();
+            deleteUpdate();
         } else {
-            UPDATE_PATH.setReadable(true, false);
-            engine.applyPayload("file://" + UPDATE_PATH, payloadOffset, 0, headerKeyValuePairs);
+            Log.d(TAG, "onPayloadApplicationComplete: " + result.get());
+            final String error = "update_engine error " + result.get();
+            current.setResult(error);
+            // thrown, so that the failure is reported and a retry scheduled
+            throw new IOException(countApplyFailure() ? error : error + ", package discarded");
+        }
+    }
+
+    /**
+     * Keeps the package for a retry without downloading it again, going back to verifying it,
+     * unless update_engine failed to apply it MAX_APPLY_ATTEMPTS times.
+     *
+     * @return false if the package was discarded
+     */
+    private boolean countApplyFailure() throws IOException {
+        final UpdateJournal.State failed = journal.getState().withApplyFailure();
+        if (failed.applyFailures >= MAX_APPLY_ATTEMPTS) {
+            discardUpdate();
+            return false;
         }
+        journal.moveTo(failed);
+        return true;
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch monitor) {
         try {
             monitor.await();
         } catch (InterruptedException e) {}
     }
 
-    private static ZipEntry getEntry(final ZipFile zipFile, final String name) throws GeneralSecurityException {
-        final ZipEntry entry = zipFile.getEntry(name);
+    private String getPackageUrl() {
+        if (SystemProperties.getBoolean("sys.update.streaming_test", false)) {
+            Log.d(TAG, "streaming update test");
+            return mirrors.getUrl() + journal.getState().downloadFile;
+        }
+        UPDATE_PATH.setReadable(true, false);
+        return "file://" + UPDATE_PATH;
+    }
+
+    private void verifyCompatibility(final ZipFile zipFile) throws IOException, GeneralSecurityException {
+        final ZipEntry entry = zipFile.getEntry("compatibility.zip");
         if (entry == null) {
-            throw new GeneralSecurityException("missing zip entry: " + name);
+            return;
+        }
+        final File compatibility = new File(createDeviceProtectedStorageContext().getCacheDir(), "compatibility.zip");
+        try {
+            Files.copy(zipFile.getInputStream(entry), compatibility.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (!RecoverySystem.verifyPackageCompatibility(compatibility)) {
+                throw new GeneralSecurityException("package compatibility verification failed");
+            }
+        } finally {
+            compatibility.delete();
         }
-        return entry;
     }
 
-    private void onDownloadFinished(final long targetBuildDate, final String channel) throws IOException, GeneralSecurityException {
+    /**
+     * Returns true if the signature was checked against the digest computed during the download.
+     *
+     * A bad signature first looks for chunks corrupted on storage since they were downloaded. The
+     * package is kept when there are some, so that resuming fetches only those chunks again. A
+     * package with a good signature also has to be the one listed in the index, which rules out
+     * another signed package served under its name.
+     */
+    private boolean verifySignature(final PackageIndex.Entry step, final PackageVerifier verifier)
+            throws IOException, GeneralSecurityException {
+        final long start = System.nanoTime();
         try {
-            RecoverySystem.verifyPackage(UPDATE_PATH,
-                (int progress) -> Log.d(TAG, "verifyPackage: " + progress + "%"), null);
-
-            final ZipFile zipFile = new ZipFile(UPDATE_PATH);
-
-            final ZipEntry metadata = getEntry(zipFile, "META-INF/com/android/metadata");
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(metadata)));
-            String device = null;
-            String serialno = null;
-            String type = null;
-            String sourceIncremental = null;
-            String sourceFingerprint = null;
-            String streamingPropertyFiles[] = null;
-            long timestamp = 0;
-            for (String line; (line = reader.readLine()) != null; ) {
-                final String[] pair = line.split("=");
-                if ("post-timestamp".equals(pair[0])) {
-                    timestamp = Long.parseLong(pair[1]);
-                } else if ("serialno".equals(pair[0])) {
-                    serialno = pair[1];
-                } else if ("pre-device".equals(pair[0])) {
-                    device = pair[1];
-                } else if ("ota-type".equals(pair[0])) {
-                    type = pair[1];
-                } else if ("ota-streaming-property-files".equals(pair[0])) {
-                    streamingPropertyFiles = pair[1].trim().split(",");
-                } else if ("pre-build-incremental".equals(pair[0])) {
-                    sourceIncremental = pair[1];
-                } else if ("pre-build".equals(pair[0])) {
-                    sourceFingerprint = pair[1];
-                }
+            final boolean verified = verifier.verify(PackageVerifier.loadCertificates(OTACERTS_PATH));
+            // the file digest is computed even for signature schemes that need the fallback
+            if (!MessageDigest.isEqual(verifier.getFileDigest(), step.sha256)) {
+                throw new GeneralSecurityException("package digest does not match the index");
             }
-            if (timestamp != targetBuildDate) {
-                throw new GeneralSecurityException("timestamp does not match server metadata");
+            if (!verified) {
+                Log.d(TAG, "signature scheme not supported for streaming verification");
+                RecoverySystem.verifyPackage(UPDATE_PATH,
+                    (int progress) -> Log.d(TAG, "verifyPackage: " + progress + "%"), null);
             }
-            if (!DEVICE.equals(device)) {
-                throw new GeneralSecurityException("device mismatch");
+            return verified;
+        } catch (SignatureException e) {
+            if (Downloader.repair(UPDATE_PATH)) {
+                journal.moveTo(UpdateJournal.Phase.DOWNLOADING);
+                throw new IOException("corrupt chunks in downloaded package, fetching them again", e);
             }
-            if (serialno != null) {
-                if ("stable".equals(channel) || "beta".equals(channel)) {
-                    throw new GeneralSecurityException("serialno constraint not permitted for channel " + channel);
-                }
-                if (!serialno.equals(Build.getSerial())) {
-                    throw new GeneralSecurityException("serialno mismatch");
+            throw e;
+        } finally {
+            attempt.onVerified(System.nanoTime() - start);
+        }
+    }
+
+    private void onDownloadFinished(final PackageIndex.Entry step, final String channel,
+            final PackageVerifier verifier) throws IOException, GeneralSecurityException {
+        try {
+            if (verifySignature(step, verifier)) {
+                try (final ZipFile zipFile = new ZipFile(UPDATE_PATH)) {
+                    verifyCompatibility(zipFile);
                 }
             }
-            if (!"AB".equals(type)) {
-                throw new GeneralSecurityException("package is not an A/B update");
-            }
-            if (sourceIncremental != null && !sourceIncremental.equals(INCREMENTAL)) {
-                throw new GeneralSecurityException("source incremental mismatch");
-            }
-            if (sourceFingerprint != null && !sourceFingerprint.equals(FINGERPRINT)) {
-                throw new GeneralSecurityException("source fingerprint mismatch");
+            journal.moveTo(UpdateJournal.Phase.APPLYING);
+            installPackage(step.targetBuildDate, channel, getPackageUrl(), null);
+        } catch (GeneralSecurityException e) {
+            discardUpdate();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts installing as soon as the metadata at the end of the package has arrived, serving the
+     * payload to update_engine from the partially downloaded file. The package signature is checked
+     * once the download completes, cancelling the installation if it fails.
+     */
+    private void installWhileDownloading(final Downloader downloader, final Downloader.ProgressListener listener,
+            final PackageIndex.Entry step, final String channel) throws IOException, GeneralSecurityException {
+        downloader.prioritize(downloader.getContentLength() - 1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<Void> download = executor.submit(() -> {
+            downloader.run(listener);
+            return null;
+        });
+        executor.shutdown();
+        try {
+            try (final LocalPackageServer server = new LocalPackageServer(UPDATE_PATH, downloader)) {
+                awaitEntries(downloader, OtaPackage.METADATA_ENTRY, "care_map.txt", "payload_properties.txt");
+                Log.d(TAG, "package metadata available, installing while downloading");
+                installPackage(step.targetBuildDate, channel, server.getUrl(), () -> {
+                    getResult(download);
+                    attempt.onDownloadFinished();
+                    Log.d(TAG, "download completed");
+                    progressDispatcher.onDownloadFinished();
+                    journal.moveTo(UpdateJournal.Phase.VERIFYING);
+                    if (verifySignature(step, downloader.getVerifier())) {
+                        try (final ZipFile zipFile = new ZipFile(UPDATE_PATH)) {
+                            verifyCompatibility(zipFile);
+                        }
+                    }
+                    journal.moveTo(UpdateJournal.Phase.APPLYING);
+                });
+            } finally {
+                downloader.cancel();
+                try {
+                    download.get();
+                } catch (ExecutionException | InterruptedException e) {
+                }
             }
+        } catch (GeneralSecurityException e) {
+            discardUpdate();
+            throw e;
+        }
+    }
 
-            long payloadOffset = 0;
-            for (final String streamingPropertyFile : streamingPropertyFiles) {
-                final String properties[] = streamingPropertyFile.split(":");
-                if ("payload.bin".equals(properties[0])) {
-                    payloadOffset = Long.parseLong(properties[1]);
+    /**
+     * Waits for the zip central directory and the given entries to be downloaded.
+     */
+    private static void awaitEntries(final Downloader downloader, final String... names) throws IOException {
+        try (final FileChannel file = FileChannel.open(UPDATE_PATH.toPath(), StandardOpenOption.READ)) {
+            final ZipDirectory.Source fileSource = ZipDirectory.newSource(file);
+            final ZipDirectory.Source source = (final ByteBuffer buffer, final long position) -> {
+                await(downloader, position, position + buffer.remaining());
+                fileSource.read(buffer, position);
+            };
+            final ZipDirectory zip = ZipDirectory.read(source, downloader.getContentLength());
+            for (final String name : names) {
+                final ZipDirectory.Entry entry = zip.getEntry(name);
+                if (entry != null) {
+                    final long offset = zip.getDataOffset(entry);
+                    await(downloader, offset, offset + entry.compressedSize);
                 }
             }
+        }
+    }
 
-            Files.deleteIfExists(CARE_MAP_PATH.toPath());
-            final ZipEntry careMapEntry = zipFile.getEntry("care_map.txt");
-            if (careMapEntry == null) {
-                Log.w(TAG, "care_map.txt missing");
-            } else {
-                Files.copy(zipFile.getInputStream(careMapEntry), CARE_MAP_PATH.toPath());
-                CARE_MAP_PATH.setReadable(true, false);
+    private static void await(final Downloader downloader, final long start, final long end) throws IOException {
+        try {
+            downloader.await(start, end);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for package data");
+        }
+    }
+
+    private static void getResult(final Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for download");
+        }
+    }
 
-            final ZipEntry payloadProperties = getEntry(zipFile, "payload_properties.txt");
-            final BufferedReader propertiesReader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(payloadProperties)));
-            applyUpdate(payloadOffset, propertiesReader.lines().toArray(String[]::new));
-        } catch (GeneralSecurityException e) {
-            UPDATE_PATH.delete();
-            throw e;
+    /**
+     * Checks the package metadata against this device and the server metadata, returning the
+     * offset of the payload within the package.
+     */
+    private static long checkMetadata(final OtaPackage.Metadata metadata, final long targetBuildDate,
+            final String channel) throws GeneralSecurityException {
+        if (metadata == null) {
+            throw new GeneralSecurityException("missing zip entry: " + OtaPackage.METADATA_ENTRY);
+        }
+        if (metadata.timestamp != targetBuildDate) {
+            throw new GeneralSecurityException("timestamp does not match server metadata");
+        }
+        if (!DEVICE.equals(metadata.device)) {
+            throw new GeneralSecurityException("device mismatch");
+        }
+        if (metadata.serialno != null) {
+            if ("stable".equals(channel) || "beta".equals(channel)) {
+                throw new GeneralSecurityException("serialno constraint not permitted for channel " + channel);
+            }
+            if (!metadata.serialno.equals(Build.getSerial())) {
+                throw new GeneralSecurityException("serialno mismatch");
+            }
+        }
+        if (!"AB".equals(metadata.type)) {
+            throw new GeneralSecurityException("package is not an A/B update");
+        }
+        if (metadata.sourceIncremental != null && !metadata.sourceIncremental.equals(INCREMENTAL)) {
+            throw new GeneralSecurityException("source incremental mismatch");
+        }
+        if (metadata.sourceFingerprint != null && !metadata.sourceFingerprint.equals(FINGERPRINT)) {
+            throw new GeneralSecurityException("source fingerprint mismatch");
+        }
+
+        final long[] payload = metadata.propertyFiles.get("payload.bin");
+        if (payload == null) {
+            throw new GeneralSecurityException("payload.bin missing from ota-streaming-property-files");
         }
+        return payload[0];
     }
 
-    private void annoyUser() {
+    /**
+     * Runs the metadata checks against the remote package before downloading it, fetching only the
+     * end of central directory, the central directory and the metadata entry with range requests.
+     * A package built for another device or source build is rejected without transferring it.
+     */
+    private static void preflight(final Downloader downloader, final long targetBuildDate,
+            final String channel) throws IOException, GeneralSecurityException {
+        final ZipDirectory.Source source = downloader.newRemoteSource();
+        if (source == null) {
+            Log.d(TAG, "server does not support range requests, skipping preflight");
+            return;
+        }
+        final ZipDirectory zip = ZipDirectory.read(source, downloader.getContentLength());
+        final ZipDirectory.Entry entry = zip.getEntry(OtaPackage.METADATA_ENTRY);
+        checkMetadata(entry == null ? null : OtaPackage.Metadata.parse(zip.read(entry)),
+                targetBuildDate, channel);
+        Log.d(TAG, "preflight passed");
+    }
+
+    private void installPackage(final long targetBuildDate, final String channel, final String url,
+            final ApplyTask whileApplying) throws IOException, GeneralSecurityException {
+        final long payloadOffset;
+        final byte[] careMap;
+        final byte[] payloadProperties;
+        try (final OtaPackage ota = new OtaPackage(UPDATE_PATH)) {
+            payloadOffset = checkMetadata(ota.getMetadata(), targetBuildDate, channel);
+            careMap = ota.read("care_map.txt");
+            payloadProperties = ota.read("payload_properties.txt");
+        }
+
+        Files.deleteIfExists(CARE_MAP_PATH.toPath());
+        if (careMap == null) {
+            Log.w(TAG, "care_map.txt missing");
+        } else {
+            Files.write(CARE_MAP_PATH.toPath(), careMap);
+            CARE_MAP_PATH.setReadable(true, false);
+        }
+
+        if (payloadProperties == null) {
+            throw new GeneralSecurityException("missing zip entry: payload_properties.txt");
+        }
+        applyUpdate(url, payloadOffset, new String(payloadProperties, StandardCharsets.UTF_8).split("\\r?\\n"),
+                whileApplying);
+    }
+
+    private static void deleteUpdate() {
+        try {
+            Downloader.delete(UPDATE_PATH);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to delete " + UPDATE_PATH, e);
+        }
+    }
+
+    /**
+     * Deletes a package that failed the security checks, so that it is not resumed.
+     */
+    private void discardUpdate() throws IOException {
+        deleteUpdate();
+        journal.moveTo(UpdateJournal.Phase.IDLE);
+    }
+
+    private void annoyUser() throws IOException {
         PeriodicJob.cancel(this);
-        final SharedPreferences preferences = Settings.getPreferences(this);
-        preferences.edit().putBoolean(Settings.KEY_WAITING_FOR_REBOOT, true).apply();
+        journal.moveTo(UpdateJournal.Phase.AWAITING_REBOOT);
+        Settings.edit(this)
+                .setUpdateStatus(Settings.UpdateStatus.UpdateDone)
+                .setRetryAttempt(0)
+                .commit();
         if (Settings.getIdleReboot(this)) {
             IdleReboot.schedule(this);
         }
         notificationHandler.showRebootNotification();
-        broadcastHandler.sendUpdateDone();
-        Settings.setUpdateStatus(this, Settings.UpdateStatus.UpdateDone);
+        state.setStatus(Settings.UpdateStatus.UpdateDone);
+    }
+
+    /**
+     * Commits the outcome of an update check, rescheduling the periodic job once the new poll
+     * interval is stored if the server changed it.
+     */
+    private void commitCheck(final Settings.Transaction transaction, final boolean intervalChanged) {
+        transaction.commit();
+        if (intervalChanged) {
+            PeriodicJob.schedule(this);
+        }
     }
 
     @Override
@@ -227,138 +566,226 @@ public class Service extends IntentService {
         try {
             wakeLock.acquire();
 
-            if (mUpdating) {
-                Log.d(TAG, "updating already, returning early");
-                return;
-            }
-            final SharedPreferences preferences = Settings.getPreferences(this);
-            if (Settings.getIsWaitingForReboot(this)) {
+            // the last phase reached before this check, possibly by a process that was killed
+            final UpdateJournal.State resume = journal.beginCheck();
+            if (resume.phase == UpdateJournal.Phase.AWAITING_REBOOT) {
                 Log.d(TAG, "updated already, waiting for reboot");
                 return;
             }
-            mUpdating = true;
+            Log.d(TAG, "resuming from " + resume);
 
             final String channel = SystemProperties.get("sys.update.channel", Settings.getChannel(this));
 
-            Log.d(TAG, "fetching metadata for " + DEVICE + "-" + channel);
-            InputStream input = fetchData(DEVICE + "-" + channel).getInputStream();
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-            final String[] metadata = reader.readLine().split(" ");
-            reader.close();
+            final MirrorSelector.Opener opener = url -> openUrl(url, READ_TIMEOUT);
+            mirrors.probe(opener, UpdateCheck.getIndexPath(DEVICE));
+            final HttpCache cache = new HttpCache(
+                    new File(createDeviceProtectedStorageContext().getCacheDir(), HTTP_CACHE_DIRECTORY),
+                    mirrors.getConnector(opener));
 
-            final String targetIncremental = metadata[0];
-            final long targetBuildDate = Long.parseLong(metadata[1]);
             final long sourceBuildDate = SystemProperties.getLong("ro.build.date.utc", 0);
-            if (targetBuildDate <= sourceBuildDate) {
+            final List<PublicKey> trusted = new ArrayList<>();
+            for (final X509Certificate certificate : PackageVerifier.loadCertificates(OTACERTS_PATH)) {
+                trusted.add(certificate.getPublicKey());
+            }
+            UpdateCheck.Result check;
+            while (true) {
+                final String mirror = mirrors.getUrl();
+                Log.d(TAG, "fetching index and changelog for " + DEVICE + " on " + channel + " from " + mirror);
+                try {
+                    check = UpdateCheck.check(cache, DEVICE, channel, sourceBuildDate, trusted,
+                            Settings.getChangelogFetchLength(this));
+                    break;
+                } catch (IOException | GeneralSecurityException e) {
+                    // a mirror that is down, out of date or serving a bad index
+                    if (!mirrors.failover(mirror)) {
+                        throw e;
+                    }
+                    Log.w(TAG, "check against " + mirror + " failed, failing over", e);
+                }
+            }
+            if (!check.modified) {
+                Log.d(TAG, "index not modified");
+            }
+            final Settings.Transaction transaction = Settings.edit(this);
+            final boolean intervalChanged = check.intervalMillis != Settings.getRecommendedCheckInterval(this);
+            if (intervalChanged) {
+                Log.d(TAG, "recommended check interval changed to " + check.intervalMillis + " ms");
+                transaction.setRecommendedCheckInterval(check.intervalMillis);
+            }
+            final String targetIncremental = check.targetIncremental;
+            final long targetBuildDate = check.targetBuildDate;
+            if (!check.isNewer()) {
                 Log.d(TAG, "targetBuildDate: " + targetBuildDate + " not higher than sourceBuildDate: " + sourceBuildDate);
-                broadcastHandler.sendUpdateNotAvailable();
-                mUpdating = false;
+                PeriodicJob.cancelRetry(this, transaction);
+                commitCheck(transaction.setUpdateStatus(Settings.UpdateStatus.NotAvailable), intervalChanged);
+                journal.endCheck();
+                state.setStatus(Settings.UpdateStatus.NotAvailable);
                 return;
             }
 
-            /* Request changelog from server */
-            String changelog = "";
-            try {
-                Log.d(TAG, "fetching changelog for " + DEVICE + "-" + channel);
-                String changelogLine = "";
-                input = fetchData(DEVICE + "-" + channel + "-changelog").getInputStream();
-                final BufferedReader changelogReader = new BufferedReader(new InputStreamReader(input));
-                while ((changelogLine = changelogReader.readLine()) != null) {
-                    changelog += changelogLine + "\n";
-                }
-                changelogReader.close();
-            } catch (Exception e) {
+            if (check.changelog == null) {
                 Log.d(TAG, "update description not found");
             }
+            try {
+                Settings.setAvailableUpdateDescription(this,
+                        check.changelog == null ? null : new ByteArrayInputStream(check.changelog));
+            } catch (IOException e) {
+                Log.e(TAG, "failed to store update description", e);
+            }
+            transaction.setAvailableUpdate(targetIncremental, targetBuildDate);
 
-            Settings.setAvailableUpdateVersion(this, targetIncremental);
-            Settings.setAvailableUpdateDate(this, targetBuildDate);
-            Settings.setAvailableUpdateDescription(this, changelog);
-
+            final boolean userInitiated = SERVICE_ACTION_INSTALL.equals(intent.getAction());
+            // an update the user started installing carries on from scheduled checks, such as the
+            // retry after a failed download, which fetch at the background rate
+            final boolean resuming = resume.phase == UpdateJournal.Phase.DOWNLOADING ||
+                    resume.phase == UpdateJournal.Phase.VERIFYING || resume.phase == UpdateJournal.Phase.APPLYING;
             /* By default service should only check for update without downloading it immediately */
-            if (intent.getAction() == null || !intent.getAction().equals(SERVICE_ACTION_INSTALL)) {
-                Settings.setUpdateStatus(this, Settings.UpdateStatus.Available);
+            if (!userInitiated && !resuming) {
+                PeriodicJob.cancelRetry(this, transaction);
+                commitCheck(transaction.setUpdateStatus(Settings.UpdateStatus.Available), intervalChanged);
                 notificationHandler.showUpdateAvailableNotification();
-                broadcastHandler.sendUpdateInfo(targetIncremental, targetBuildDate, changelog);
-                mUpdating = false;
+                state.setAvailableUpdate(targetIncremental, targetBuildDate);
+                journal.endCheck();
                 return;
             }
+            commitCheck(transaction, intervalChanged);
             notificationHandler.cancelUpdateAvailableNotification();
+            attempt = new UpdateMetrics.Attempt(System.currentTimeMillis(), targetIncremental);
 
-            String downloadFile = preferences.getString(PREFERENCE_DOWNLOAD_FILE, null);
-            long downloaded = UPDATE_PATH.length();
-            int contentLength;
-
-            final String incrementalUpdate = DEVICE + "-incremental-" + INCREMENTAL + "-" + targetIncremental + ".zip";
-            final String fullUpdate = DEVICE + "-ota_update-" + targetIncremental + ".zip";
+            // the first step of a chain installs an intermediate build, and the rest follow after rebooting
+            final List<PackageIndex.Entry> plan = check.index.plan(INCREMENTAL, sourceBuildDate, targetIncremental);
+            if (plan == null) {
+                throw new IOException("no packages from " + INCREMENTAL + " to " + targetIncremental + " in index");
+            }
+            Log.d(TAG, "planned " + plan.size() + " step(s): " + plan);
+            final PackageIndex.Entry step = plan.get(0);
+            final String stepIncremental = step.targetIncremental;
+            final String downloadFile = step.name;
+            final long chainDownloaded = Settings.getChainDownloaded(this, targetIncremental, stepIncremental);
+            long chainRemaining = 0;
+            for (int i = 1; i < plan.size(); i++) {
+                chainRemaining += plan.get(i).size;
+            }
 
-            if (incrementalUpdate.equals(downloadFile) || fullUpdate.equals(downloadFile)) {
-                Log.d(TAG, "resume fetch of " + downloadFile + " from " + downloaded + " bytes");
-                final HttpURLConnection connection = (HttpURLConnection) fetchData(downloadFile);
-                connection.setRequestProperty("Range", "bytes=" + downloaded + "-");
-                if (connection.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+            final Downloader downloader;
+            if (resume.isFor(stepIncremental, downloadFile) && UPDATE_PATH.exists()) {
+                if (resume.phase == UpdateJournal.Phase.APPLYING) {
+                    // counted as a failure, as the package may be what keeps the installation from finishing
+                    Log.d(TAG, "installation interrupted, verifying the package again");
+                    if (!countApplyFailure()) {
+                        throw new IOException("installation interrupted " + MAX_APPLY_ATTEMPTS +
+                                " times, package discarded");
+                    }
+                    onDownloadFinished(step, channel, new PackageVerifier(UPDATE_PATH));
+                    return;
+                }
+                if (resume.phase == UpdateJournal.Phase.VERIFYING) {
                     Log.d(TAG, "download completed previously");
-                    onDownloadFinished(targetBuildDate, channel);
+                    journal.moveTo(resume);
+                    onDownloadFinished(step, channel, new PackageVerifier(UPDATE_PATH));
                     return;
                 }
-                contentLength = connection.getContentLength() + (int) downloaded;
-                input = connection.getInputStream();
-            } else {
-                try {
-                    Log.d(TAG, "fetch incremental " + incrementalUpdate);
-                    downloadFile = incrementalUpdate;
-                    final URLConnection connection = fetchData(downloadFile);
-                    contentLength = connection.getContentLength();
-                    input = connection.getInputStream();
-                } catch (IOException e) {
-                    Log.d(TAG, "incremental not found, fetch full update " + fullUpdate);
-                    downloadFile = fullUpdate;
-                    final URLConnection connection = fetchData(downloadFile);
-                    contentLength = connection.getContentLength();
-                    input = connection.getInputStream();
+                Log.d(TAG, "resume fetch of " + downloadFile);
+                downloader = new Downloader(getDownloadConnector(), UPDATE_PATH, downloadFile);
+                downloader.connect(true);
+                if (downloader.isComplete()) {
+                    Log.d(TAG, "download completed previously");
+                    journal.moveTo(UpdateJournal.Phase.VERIFYING);
+                    onDownloadFinished(step, channel, downloader.getVerifier());
+                    return;
                 }
-                downloaded = 0;
-                Files.deleteIfExists(UPDATE_PATH.toPath());
-            }
-
-            Settings.setUpdateStatus(this, Settings.UpdateStatus.Downloading);
-            notificationHandler.showDownloadNotification(this, (int) downloaded, contentLength);
-
-            final OutputStream output = new FileOutputStream(UPDATE_PATH, downloaded != 0);
-            preferences.edit().putString(PREFERENCE_DOWNLOAD_FILE, downloadFile).commit();
-
-            int bytesRead;
-            long last = System.nanoTime();
-            final byte[] buffer = new byte[8192];
-            while ((bytesRead = input.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
-                downloaded += bytesRead;
-                final long now = System.nanoTime();
-                if (now - last > 1000 * 1000 * 1000) {
-                    Log.d(TAG, "downloaded " + downloaded + " from " + contentLength + " bytes");
-                    notificationHandler.showDownloadNotification(this, (int) downloaded, contentLength);
-                    broadcastHandler.sendUpdateDownloadProgress(downloaded, contentLength);
-                    last = now;
+            } else {
+                Log.d(TAG, "fetch " + downloadFile);
+                downloader = new Downloader(getDownloadConnector(), UPDATE_PATH, downloadFile);
+                downloader.connect(false);
+            }
+            try {
+                if (downloader.getContentLength() != step.size) {
+                    throw new GeneralSecurityException("size of " + downloadFile + " does not match the index");
                 }
+                preflight(downloader, step.targetBuildDate, channel);
+            } catch (GeneralSecurityException e) {
+                discardUpdate();
+                throw e;
+            }
+            // a full /data fails here rather than after transferring most of the package
+            downloader.preallocate(getAllocator());
+            final long contentLength = downloader.getContentLength();
+
+            // a resumed download keeps the failed applies of a package that had corrupt chunks
+            journal.moveTo(resume.isFor(stepIncremental, downloadFile) ?
+                    resume.withPhase(UpdateJournal.Phase.DOWNLOADING) :
+                    new UpdateJournal.State(UpdateJournal.Phase.DOWNLOADING, stepIncremental,
+                            step.targetBuildDate, downloadFile));
+            Settings.edit(this)
+                    .setUpdateStatus(Settings.UpdateStatus.Downloading)
+                    .setChainStep(targetIncremental, stepIncremental, chainDownloaded, contentLength)
+                    .commit();
+            state.setStatus(Settings.UpdateStatus.Downloading);
+            // progress covers the whole chain, counting steps installed before and the ones after
+            final long progressOffset = chainDownloaded;
+            final long progressRemaining = chainRemaining;
+            progressDispatcher.onDownloadProgress(progressOffset + downloader.getDownloaded(),
+                    progressOffset + contentLength + progressRemaining);
+
+            final long rate = Settings.getDownloadRate(this, userInitiated);
+            if (rate != 0) {
+                Log.d(TAG, "limiting " + (userInitiated ? "" : "background ") + "download to " + rate + " bytes/s");
+            }
+            downloader.setRateLimiter(new RateLimiter(rate));
+
+            attempt.onDownloadStarted(downloader);
+            final Downloader.ProgressListener listener = (long downloaded, long total) -> {
+                Log.d(TAG, "downloaded " + downloaded + " from " + total + " bytes");
+                attempt.onProgress(downloaded);
+                progressDispatcher.onDownloadProgress(progressOffset + downloaded,
+                        progressOffset + total + progressRemaining);
+            };
+            if (Settings.getInstallWhileDownloading(this) &&
+                    !SystemProperties.getBoolean("sys.update.streaming_test", false)) {
+                installWhileDownloading(downloader, listener, step, channel);
+                return;
+            }
+            final String mirror = mirrors.getUrl();
+            final long downloadStart = System.nanoTime();
+            downloader.run(listener);
+            attempt.onDownloadFinished();
+            if (rate == 0 && downloader.getFailovers() == 0) {
+                mirrors.onDownloaded(mirror, downloader.getDownloaded() - downloader.getResumed(),
+                        System.nanoTime() - downloadStart);
             }
-            output.close();
-            input.close();
 
             Log.d(TAG, "download completed");
-            notificationHandler.cancelDownloadNotification();
-            onDownloadFinished(targetBuildDate, channel);
+            progressDispatcher.onDownloadFinished();
+            journal.moveTo(UpdateJournal.Phase.VERIFYING);
+            onDownloadFinished(step, channel, downloader.getVerifier());
         } catch (GeneralSecurityException | IOException e) {
             Log.e(TAG, "failed to download and install update", e);
-            mUpdating = false;
-            Settings.setUpdateStatus(this, Settings.UpdateStatus.NotAvailable);
-            PeriodicJob.scheduleRetry(this);
+            if (attempt != null) {
+                attempt.setResult("failed: " + e);
+            }
+            journal.endCheck();
+            final Settings.Transaction transaction = Settings.edit(this)
+                    .setUpdateStatus(Settings.UpdateStatus.NotAvailable);
+            PeriodicJob.scheduleRetry(this, e, transaction);
+            transaction.commit();
             notificationHandler.cancelUpdateAvailableNotification();
-            broadcastHandler.sendUpdateFailed();
+            state.setFailed(CheckSchedule.classify(e) == CheckSchedule.FAILURE_STORAGE ?
+                    UpdateState.Failure.InsufficientSpace : UpdateState.Failure.Generic);
         } finally {
+            final UpdateMetrics.Attempt finished = attempt;
+            if (finished != null) {
+                finished.finish();
+                attempt = null;
+                try {
+                    metrics.add(finished);
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to record update metrics", e);
+                }
+            }
             Log.d(TAG, "release wake locks");
             wakeLock.release();
-            notificationHandler.cancelDownloadNotification();
-            notificationHandler.cancelInstallNotification();
+            progressDispatcher.cancel();
             TriggerUpdateReceiver.completeWakefulIntent(intent);
         }
     }
@@ -2,24 +2,45 @@ package app.seamlessupdate.client;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.UserManager;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+
 public class Settings {
+    private static final String TAG = "Settings";
+
     private static final String KEY_CHANNEL = "channel";
     private static final String KEY_NETWORK_TYPE = "network_type";
     private static final String KEY_BATTERY_NOT_LOW = "battery_not_low";
     private static final String KEY_IDLE_REBOOT = "idle_reboot";
-    static final String KEY_WAITING_FOR_REBOOT = "waiting_for_reboot";
-    static final String KEY_UPDATE_STATUS = "update_status";
+    private static final String KEY_INSTALL_WHILE_DOWNLOADING = "install_while_downloading";
+    private static final String KEY_DOWNLOAD_RATE = "download_rate";
+    private static final String KEY_BACKGROUND_DOWNLOAD_RATE = "background_download_rate";
+    private static final String KEY_UPDATE_STATUS = "update_status";
+    private static final String KEY_RECOMMENDED_CHECK_INTERVAL = "recommended_check_interval";
+    private static final String KEY_CHECK_JITTER_SEED = "check_jitter_seed";
+    private static final String KEY_RETRY_ATTEMPT = "retry_attempt";
     private static final String KEY_LAST_UPDATE_CHECK = "last_update_check";
     private static final String KEY_AVAILABLE_UPDATE_VERSION = "available_update_version";
     private static final String KEY_AVAILABLE_UPDATE_DATE = "available_update_date";
+    private static final String KEY_CHAIN_TARGET = "chain_target";
+    private static final String KEY_CHAIN_STEP = "chain_step";
+    private static final String KEY_CHAIN_DOWNLOADED = "chain_downloaded";
+    private static final String KEY_CHAIN_STEP_SIZE = "chain_step_size";
+    /**
+     * The changelog kept in the preferences by older versions, which is now stored in its own file.
+     */
     private static final String KEY_AVAILABLE_UPDATE_DESCRIPTION = "available_update_description";
 
     public enum UpdateStatus {
@@ -30,9 +51,124 @@ public class Settings {
         UpdateDone
     }
 
+    private static final String JOURNAL_FILE = "update_journal";
+    private static final String CHANGELOG_FILE = "changelog.gz";
+
+    private static volatile SharedPreferences preferences;
+    private static volatile UpdateJournal journal;
+
+    /**
+     * A batch of changes to the update state, written with a single durable commit so that each
+     * state transition costs one write of the preferences file and is never seen half applied.
+     * The preferences keep the in-memory snapshot that all reads are served from.
+     */
+    static final class Transaction {
+        private final SharedPreferences.Editor editor;
+
+        private Transaction(final SharedPreferences preferences) {
+            editor = preferences.edit();
+        }
+
+        Transaction setUpdateStatus(final UpdateStatus status) {
+            editor.putString(KEY_UPDATE_STATUS, status.toString());
+            return this;
+        }
+
+        /**
+         * Sets the available update, whose changelog is written separately with
+         * {@link #setAvailableUpdateDescription}.
+         */
+        Transaction setAvailableUpdate(final String version, final long date) {
+            editor.putString(KEY_AVAILABLE_UPDATE_VERSION, version);
+            editor.putLong(KEY_AVAILABLE_UPDATE_DATE, date);
+            editor.remove(KEY_AVAILABLE_UPDATE_DESCRIPTION);
+            return this;
+        }
+
+        /**
+         * Records the step being downloaded in a chain of packages to the target, along with the
+         * bytes downloaded by the steps installed before it.
+         */
+        Transaction setChainStep(final String targetIncremental, final String stepIncremental,
+                final long downloaded, final long stepSize) {
+            editor.putString(KEY_CHAIN_TARGET, targetIncremental);
+            editor.putString(KEY_CHAIN_STEP, stepIncremental);
+            editor.putLong(KEY_CHAIN_DOWNLOADED, downloaded);
+            editor.putLong(KEY_CHAIN_STEP_SIZE, stepSize);
+            return this;
+        }
+
+        Transaction setRetryAttempt(final int attempt) {
+            editor.putInt(KEY_RETRY_ATTEMPT, attempt);
+            return this;
+        }
+
+        Transaction setRecommendedCheckInterval(final long intervalMillis) {
+            editor.putLong(KEY_RECOMMENDED_CHECK_INTERVAL, intervalMillis);
+            return this;
+        }
+
+        Transaction setLastUpdateCheck(final long millis) {
+            editor.putLong(KEY_LAST_UPDATE_CHECK, millis);
+            return this;
+        }
+
+        private Transaction setCheckJitterSeed(final long seed) {
+            editor.putLong(KEY_CHECK_JITTER_SEED, seed);
+            return this;
+        }
+
+        /**
+         * Writes the changes to disk. The in-memory state is updated even if that fails, so the
+         * failure is only logged and the changes are written again with the next commit.
+         */
+        void commit() {
+            if (!editor.commit()) {
+                Log.e(TAG, "failed to write preferences");
+            }
+        }
+    }
+
     static SharedPreferences getPreferences(final Context context) {
-        final Context deviceContext = context.createDeviceProtectedStorageContext();
-        return PreferenceManager.getDefaultSharedPreferences(deviceContext);
+        SharedPreferences cached = preferences;
+        if (cached == null) {
+            final Context deviceContext = context.createDeviceProtectedStorageContext();
+            cached = PreferenceManager.getDefaultSharedPreferences(deviceContext);
+            preferences = cached;
+        }
+        return cached;
+    }
+
+    static Transaction edit(final Context context) {
+        return new Transaction(getPreferences(context));
+    }
+
+    /**
+     * Generates the state the preferences are expected to hold from the start, which is the seed
+     * spreading the periodic check of this device. Called before anything schedules a check.
+     */
+    static void init(final Context context) {
+        if (!getPreferences(context).contains(KEY_CHECK_JITTER_SEED)) {
+            edit(context).setCheckJitterSeed(new SecureRandom().nextLong()).commit();
+        }
+    }
+
+    /**
+     * Returns the journal of the update lifecycle, shared by the whole process.
+     */
+    static UpdateJournal getJournal(final Context context) {
+        UpdateJournal cached = journal;
+        if (cached == null) {
+            synchronized (Settings.class) {
+                cached = journal;
+                if (cached == null) {
+                    final Context deviceContext = context.createDeviceProtectedStorageContext();
+                    cached = new UpdateJournal(new File(deviceContext.getFilesDir(), JOURNAL_FILE));
+                    journal = cached;
+                }
+            }
+        }
+        return cached;
     }
 
     static String getChannel(final Context context) {
@@ -55,8 +191,67 @@ public class Settings {
         return getPreferences(context).getBoolean(KEY_IDLE_REBOOT, def);
     }
 
+    static boolean getInstallWhileDownloading(final Context context) {
+        boolean def = Boolean.parseBoolean(context.getString(R.string.install_while_downloading_default));
+        return getPreferences(context).getBoolean(KEY_INSTALL_WHILE_DOWNLOADING, def);
+    }
+
+    /**
+     * Returns the download rate limit in bytes per second, or 0 for no limit.
+     */
+    static long getDownloadRate(final Context context, final boolean userInitiated) {
+        final String key = userInitiated ? KEY_DOWNLOAD_RATE : KEY_BACKGROUND_DOWNLOAD_RATE;
+        String def = context.getString(userInitiated ?
+                R.string.download_rate_default : R.string.background_download_rate_default);
+        return Long.parseLong(getPreferences(context).getString(key, def)) * 1024;
+    }
+
+    /**
+     * Returns the interval of the periodic check, see {@link CheckSchedule#getIntervalMillis}, using
+     * the jitter seed generated by {@link #init}.
+     */
+    static long getCheckInterval(final Context context) {
+        final SharedPreferences preferences = getPreferences(context);
+        return CheckSchedule.getIntervalMillis(preferences.getLong(KEY_RECOMMENDED_CHECK_INTERVAL, 0),
+                preferences.getLong(KEY_CHECK_JITTER_SEED, 0));
+    }
+
+    /**
+     * Returns the poll interval recommended by the server, or 0 for the default one.
+     */
+    static long getRecommendedCheckInterval(final Context context) {
+        return getPreferences(context).getLong(KEY_RECOMMENDED_CHECK_INTERVAL, 0);
+    }
+
+    /**
+     * Returns the number of consecutive failed attempts, which survives process death so that the
+     * backoff keeps growing across retries.
+     */
+    static int getRetryAttempt(final Context context) {
+        return getPreferences(context).getInt(KEY_RETRY_ATTEMPT, 0);
+    }
+
+    /**
+     * Returns the bytes downloaded by the steps installed so far in a chain of packages to the
+     * target, which is 0 unless the recorded step is for the same target and either is the next
+     * step again or is the installed build.
+     */
+    static long getChainDownloaded(final Context context, final String targetIncremental,
+            final String stepIncremental) {
+        final SharedPreferences preferences = getPreferences(context);
+        if (!targetIncremental.equals(preferences.getString(KEY_CHAIN_TARGET, null))) {
+            return 0;
+        }
+        final String recorded = preferences.getString(KEY_CHAIN_STEP, null);
+        final long downloaded = preferences.getLong(KEY_CHAIN_DOWNLOADED, 0);
+        if (Build.VERSION.INCREMENTAL.equals(recorded)) {
+            return downloaded + preferences.getLong(KEY_CHAIN_STEP_SIZE, 0);
+        }
+        return stepIncremental.equals(recorded) ? downloaded : 0;
+    }
+
     public static boolean getIsWaitingForReboot(final Context context) {
-        return getPreferences(context).getBoolean(KEY_WAITING_FOR_REBOOT, false);
+        return getJournal(context).getState().phase == UpdateJournal.Phase.AWAITING_REBOOT;
     }
 
     public static UpdateStatus getUpdateStatus(final Context context) {
@@ -66,8 +261,7 @@ public class Settings {
     }
 
     public static void setUpdateStatus(final Context context, UpdateStatus status) {
-        SharedPreferences preferences = getPreferences( context );
-        preferences.edit().putString(KEY_UPDATE_STATUS, status.toString()).apply();
+        edit(context).setUpdateStatus(status).commit();
     }
 
     public static long getLastUpdateCheck(final Context context) {
@@ -75,33 +269,52 @@ public class Settings {
     }
 
     public static void setLastUpdateCheck(final Context context) {
-        SharedPreferences preferences = getPreferences( context );
-        long millis = System.currentTimeMillis();
-        preferences.edit().putLong( KEY_LAST_UPDATE_CHECK, millis ).apply();
+        edit(context).setLastUpdateCheck(System.currentTimeMillis()).commit();
     }
 
     public static String getAvailableUpdateVersion(final Context context) {
         return getPreferences(context).getString(KEY_AVAILABLE_UPDATE_VERSION, "");
     }
 
-    public static void setAvailableUpdateVersion(final Context context, String newValue) {
-        getPreferences(context).edit().putString(KEY_AVAILABLE_UPDATE_VERSION, newValue).apply();
-    }
-
     public static long getAvailableUpdateDate(final Context context) {
         return getPreferences(context).getLong(KEY_AVAILABLE_UPDATE_DATE, -1);
     }
 
-    public static void setAvailableUpdateDate(final Context context, long newValue) {
-        getPreferences(context).edit().putLong(KEY_AVAILABLE_UPDATE_DATE, newValue).apply();
+    private static int getMaxChangelogLength(final Context context) {
+        return Integer.parseInt(context.getString(R.string.changelog_max_length));
+    }
+
+    private static ChangelogStore getChangelogStore(final Context context) {
+        final Context deviceContext = context.createDeviceProtectedStorageContext();
+        return new ChangelogStore(new File(deviceContext.getFilesDir(), CHANGELOG_FILE),
+                getMaxChangelogLength(context));
     }
 
+    /**
+     * Returns how much of a changelog is fetched, which is what the changelog store keeps of it.
+     */
+    static int getChangelogFetchLength(final Context context) {
+        return ChangelogStore.getMaxEncodedLength(getMaxChangelogLength(context));
+    }
+
+    /**
+     * Reads the changelog of the available update from disk, which is left to the UI showing it.
+     */
     public static String getAvailableUpdateDescription(final Context context) {
-        return getPreferences(context).getString(KEY_AVAILABLE_UPDATE_DESCRIPTION, "");
+        try {
+            return getChangelogStore(context).read();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read update description", e);
+            return "";
+        }
     }
 
-    public static void setAvailableUpdateDescription(final Context context, String newValue) {
-        getPreferences(context).edit().putString(KEY_AVAILABLE_UPDATE_DESCRIPTION, newValue).apply();
+    /**
+     * Replaces the changelog of the available update, or deletes it if changelog is null.
+     */
+    static void setAvailableUpdateDescription(final Context context, final InputStream changelog)
+            throws IOException {
+        getChangelogStore(context).write(changelog);
     }
 
     /* UI for SettingsActivity*/
@@ -0,0 +1,140 @@
+package app.seamlessupdate.client;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The update check against the release server, kept free of Android classes so that the fleet
+ * simulator runs the same logic as devices.
+ */
+final class UpdateCheck {
+    static final class Result {
+        final String targetIncremental;
+        final long targetBuildDate;
+        /**
+         * The poll interval recommended by the server, or 0 if it gave none.
+         */
+        final long intervalMillis;
+        /**
+         * Unset if the server answered the index request with 304 Not Modified.
+         */
+        final boolean modified;
+        /**
+         * The verified index, which the packages to download are chosen from.
+         */
+        final PackageIndex index;
+        /**
+         * The changelog of a newer release as served, cut at the length the check was given, or null
+         * if there is none or it could not be fetched.
+         */
+        final byte[] changelog;
+        private final boolean newer;
+
+        Result(final String targetIncremental, final long targetBuildDate, final PackageIndex index,
+                final boolean modified, final boolean newer, final byte[] changelog) {
+            this.targetIncremental = targetIncremental;
+            this.targetBuildDate = targetBuildDate;
+            this.intervalMillis = index.intervalMillis;
+            this.index = index;
+            this.modified = modified;
+            this.newer = newer;
+            this.changelog = changelog;
+        }
+
+        boolean isNewer() {
+            return newer;
+        }
+    }
+
+    private UpdateCheck() {
+    }
+
+    /**
+     * Returns the path of the signed index of builds and packages for a device, see
+     * {@link PackageIndex}.
+     */
+    static String getIndexPath(final String device) {
+        return device + "-index";
+    }
+
+    static String getChangelogPath(final String device, final String channel) {
+        return device + "-" + channel + "-changelog";
+    }
+
+    static String getIncrementalPath(final String device, final String sourceIncremental,
+            final String targetIncremental) {
+        return device + "-incremental-" + sourceIncremental + "-" + targetIncremental + ".zip";
+    }
+
+    static String getFullPath(final String device, final String targetIncremental) {
+        return device + "-ota_update-" + targetIncremental + ".zip";
+    }
+
+    /**
+     * Fetches and verifies the index of the device, revalidating the changelog of the channel
+     * concurrently so the check costs a single round trip. The changelog is only waited for if the
+     * release is newer than the installed build, and a failure to fetch it is not an error.
+     *
+     * @param trusted the keys the index has to be signed with
+     * @param maxChangelogLength the bytes of the changelog that are kept, see
+     * {@link ChangelogStore#getMaxEncodedLength}
+     */
+    static Result check(final HttpCache cache, final String device, final String channel,
+            final long sourceBuildDate, final List<PublicKey> trusted, final int maxChangelogLength)
+            throws IOException, GeneralSecurityException {
+        final String changelogPath = getChangelogPath(device, channel);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<HttpCache.Response> changelogResponse = executor.submit(
+                () -> cache.fetch(changelogPath, maxChangelogLength));
+        executor.shutdown();
+        final String indexPath = getIndexPath(device);
+        final HttpCache.Response indexResponse;
+        try {
+            indexResponse = cache.fetch(indexPath);
+        } catch (IOException e) {
+            changelogResponse.cancel(false);
+            throw e;
+        }
+        final PackageIndex index;
+        final String targetIncremental;
+        final long targetBuildDate;
+        try {
+            index = PackageIndex.parse(indexResponse.body, trusted);
+            if (!device.equals(index.device)) {
+                throw new GeneralSecurityException("index is for device " + index.device);
+            }
+            targetIncremental = index.getRelease(channel);
+            if (targetIncremental == null) {
+                throw new IOException("no release for channel " + channel + " in index");
+            }
+            targetBuildDate = index.getBuildDate(targetIncremental);
+            if (targetBuildDate == -1) {
+                throw new IOException("no build " + targetIncremental + " in index");
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            // not revalidated next time, so that a replaced index is fetched in full
+            cache.remove(indexPath);
+            changelogResponse.cancel(false);
+            throw e;
+        }
+        if (targetBuildDate <= sourceBuildDate) {
+            changelogResponse.cancel(false);
+            return new Result(targetIncremental, targetBuildDate, index, indexResponse.modified, false, null);
+        }
+
+        byte[] changelog;
+        try {
+            changelog = changelogResponse.get().body;
+        } catch (ExecutionException | InterruptedException e) {
+            cache.remove(changelogPath);
+            changelog = null;
+        }
+        return new Result(targetIncremental, targetBuildDate, index, indexResponse.modified, true, changelog);
+    }
+}
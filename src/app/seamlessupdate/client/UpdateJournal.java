@@ -0,0 +1,299 @@
+package app.seamlessupdate.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe state of the update lifecycle, kept as an append-only journal of transitions.
+ *
+ * Every transition appends a checksummed record and syncs it before returning, so after process
+ * death the last complete record is the last phase that was entered, and a record torn by the
+ * death is ignored. The journal is compacted to its latest record once it grows past
+ * MAX_RECORDS.
+ *
+ * Checking is the only phase that is not journaled: it has no durable result, so a check that
+ * is interrupted resumes from the phase before it.
+ */
+final class UpdateJournal {
+    private static final int VERSION = 1;
+    private static final int MAX_RECORDS = 32;
+
+    enum Phase {
+        IDLE,
+        CHECKING,
+        /**
+         * Downloading the package, which resumes from the chunk map.
+         */
+        DOWNLOADING,
+        /**
+         * The package is downloaded and its signature is to be checked, including before update_engine
+         * is retried after rejecting it.
+         */
+        VERIFYING,
+        /**
+         * The package is verified and update_engine is to apply it.
+         */
+        APPLYING,
+        AWAITING_REBOOT;
+
+        /**
+         * Returns true if the lifecycle may move from this phase to next.
+         */
+        boolean canMoveTo(final Phase next) {
+            switch (next) {
+                case IDLE:
+                    return true;
+                case CHECKING:
+                    return this != AWAITING_REBOOT;
+                case DOWNLOADING:
+                    // verifying goes back to downloading to fetch corrupt chunks again
+                    return this == CHECKING || this == VERIFYING;
+                case VERIFYING:
+                    // applying goes back to verifying once update_engine rejects the package
+                    return this == CHECKING || this == DOWNLOADING || this == APPLYING;
+                case APPLYING:
+                    return this == CHECKING || this == VERIFYING;
+                case AWAITING_REBOOT:
+                    return this == APPLYING;
+            }
+            return false;
+        }
+    }
+
+    static final class State {
+        static final State IDLE = new State(Phase.IDLE, null, 0, null);
+
+        final Phase phase;
+        /**
+         * The build and package being installed, which is an intermediate build for the first step
+         * of a chain of packages, null when idle or awaiting a reboot.
+         */
+        final String targetIncremental;
+        final long targetBuildDate;
+        final String downloadFile;
+        /**
+         * The times update_engine failed to apply the package.
+         */
+        final int applyFailures;
+
+        State(final Phase phase, final String targetIncremental, final long targetBuildDate,
+                final String downloadFile) {
+            this(phase, targetIncremental, targetBuildDate, downloadFile, 0);
+        }
+
+        private State(final Phase phase, final String targetIncremental, final long targetBuildDate,
+                final String downloadFile, final int applyFailures) {
+            this.phase = phase;
+            this.targetIncremental = targetIncremental;
+            this.targetBuildDate = targetBuildDate;
+            this.downloadFile = downloadFile;
+            this.applyFailures = applyFailures;
+        }
+
+        State withPhase(final Phase phase) {
+            return new State(phase, targetIncremental, targetBuildDate, downloadFile, applyFailures);
+        }
+
+        /**
+         * Returns the state going back to verifying after update_engine failed to apply the package.
+         */
+        State withApplyFailure() {
+            return new State(Phase.VERIFYING, targetIncremental, targetBuildDate, downloadFile, applyFailures + 1);
+        }
+
+        /**
+         * Returns true if the state is for the given release and one of its packages.
+         */
+        boolean isFor(final String targetIncremental, final String... downloadFiles) {
+            if (!Objects.equals(this.targetIncremental, targetIncremental)) {
+                return false;
+            }
+            for (final String file : downloadFiles) {
+                if (file.equals(downloadFile)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean sameAs(final State other) {
+            return phase == other.phase && Objects.equals(targetIncremental, other.targetIncremental) &&
+                    targetBuildDate == other.targetBuildDate && Objects.equals(downloadFile, other.downloadFile) &&
+                    applyFailures == other.applyFailures;
+        }
+
+        @Override
+        public String toString() {
+            return phase + (downloadFile == null ? "" : " " + downloadFile) +
+                    (applyFailures == 0 ? "" : ", " + applyFailures + " failed applies");
+        }
+
+        private void write(final DataOutputStream output) throws IOException {
+            output.writeByte(phase.ordinal());
+            output.writeUTF(targetIncremental == null ? "" : targetIncremental);
+            output.writeLong(targetBuildDate);
+            output.writeUTF(downloadFile == null ? "" : downloadFile);
+            output.writeByte(applyFailures);
+        }
+
+        private static State read(final DataInputStream input) throws IOException {
+            final int phase = input.readUnsignedByte();
+            if (phase >= Phase.values().length) {
+                throw new IOException("invalid phase " + phase);
+            }
+            final String targetIncremental = input.readUTF();
+            final long targetBuildDate = input.readLong();
+            final String downloadFile = input.readUTF();
+            // records written before failures were counted end here
+            final int applyFailures = input.available() > 0 ? input.readUnsignedByte() : 0;
+            return new State(Phase.values()[phase], targetIncremental.isEmpty() ? null : targetIncremental,
+                    targetBuildDate, downloadFile.isEmpty() ? null : downloadFile, applyFailures);
+        }
+    }
+
+    private final File file;
+    private State state = State.IDLE;
+    /**
+     * The durable state, which differs from the current one while checking.
+     */
+    private State journaled = State.IDLE;
+    private int records;
+    private boolean loaded;
+
+    UpdateJournal(final File file) {
+        this.file = file;
+    }
+
+    synchronized State getState() {
+        load();
+        return state;
+    }
+
+    /**
+     * Moves to the next state, returning once it is durable. Resuming the journaled state from
+     * the checking phase does not write anything.
+     *
+     * @throws IllegalStateException if the current phase cannot move to the next one
+     */
+    synchronized void moveTo(final State next) throws IOException {
+        load();
+        if (!state.phase.canMoveTo(next.phase)) {
+            throw new IllegalStateException("invalid transition from " + state.phase + " to " + next.phase);
+        }
+        if (next.phase == Phase.CHECKING || next.sameAs(journaled)) {
+            state = next;
+            return;
+        }
+        if (records + 1 >= MAX_RECORDS) {
+            compact(next);
+        } else {
+            append(next);
+        }
+        state = next;
+        journaled = next;
+    }
+
+    synchronized void moveTo(final Phase phase) throws IOException {
+        moveTo(phase == Phase.IDLE ? State.IDLE : getState().withPhase(phase));
+    }
+
+    /**
+     * Enters the checking phase unless awaiting a reboot, returning the journaled state that an
+     * installation following the check resumes from.
+     */
+    synchronized State beginCheck() {
+        load();
+        state = journaled.phase == Phase.AWAITING_REBOOT ? journaled : journaled.withPhase(Phase.CHECKING);
+        return journaled;
+    }
+
+    /**
+     * Leaves the checking phase without a durable result, going back to the journaled state.
+     */
+    synchronized void endCheck() {
+        load();
+        if (state.phase == Phase.CHECKING) {
+            state = journaled;
+        }
+    }
+
+    /**
+     * Replays the journal, up to the first torn or corrupt record. A journal that is missing,
+     * unreadable or has a bad tail is rewritten by the next transition rather than appended to.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        records = MAX_RECORDS;
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (input.readInt() != VERSION) {
+                return;
+            }
+            int count = 0;
+            for (int first; (first = input.read()) != -1; count++) {
+                final byte[] record = new byte[first << 8 | input.readUnsignedByte()];
+                input.readFully(record);
+                final CRC32 crc = new CRC32();
+                crc.update(record);
+                if (input.readInt() != (int) crc.getValue()) {
+                    throw new IOException("corrupt record " + count + " in " + file);
+                }
+                journaled = State.read(new DataInputStream(new ByteArrayInputStream(record)));
+            }
+            records = count;
+        } catch (IOException e) {
+            // a missing journal, or a record torn by process death
+        }
+        state = journaled;
+    }
+
+    private static void writeRecord(final DataOutputStream output, final State state) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.write(new DataOutputStream(bytes));
+        final byte[] record = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        output.writeShort(record.length);
+        output.write(record);
+        output.writeInt((int) crc.getValue());
+    }
+
+    private void append(final State next) throws IOException {
+        try (final FileOutputStream stream = new FileOutputStream(file, true);
+                final DataOutputStream output = new DataOutputStream(stream)) {
+            writeRecord(output, next);
+            output.flush();
+            stream.getFD().sync();
+        }
+        records++;
+    }
+
+    /**
+     * Replaces the journal with one holding only the given state.
+     */
+    private void compact(final State next) throws IOException {
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream stream = new FileOutputStream(tmp);
+                final DataOutputStream output = new DataOutputStream(stream)) {
+            output.writeInt(VERSION);
+            writeRecord(output, next);
+            output.flush();
+            stream.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to write " + file);
+        }
+        records = 1;
+    }
+}
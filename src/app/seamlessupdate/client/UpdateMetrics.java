@@ -0,0 +1,276 @@
+package app.seamlessupdate.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performance metrics of download and install attempts, with a bounded history persisted across
+ * process restarts for dumpsys.
+ */
+final class UpdateMetrics {
+    private static final int VERSION = 1;
+    private static final int MAX_ATTEMPTS = 16;
+    private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Phases of the payload application reported by update_engine.
+     */
+    static final int PHASE_APPLY = 0;
+    static final int PHASE_VERIFY = 1;
+    static final int PHASE_FINALIZE = 2;
+    private static final String[] PHASE_NAMES = {"apply", "verify", "finalize"};
+
+    static final class Attempt {
+        final long startTime;
+        final String target;
+        String result = "running";
+        long contentLength = -1;
+        long resumedBytes;
+        long refetchedBytes;
+        long downloadedBytes;
+        long timeToFirstByteMillis = -1;
+        long downloadMillis = -1;
+        /**
+         * 10th, 50th and 90th percentile of the throughput over one second windows, in bytes per
+         * second.
+         */
+        final long[] throughput = {-1, -1, -1};
+        int stalls;
+        long stallMillis;
+        long verifyMillis = -1;
+        final long[] phaseMillis = {-1, -1, -1};
+
+        private Downloader downloader;
+        private long downloadStart;
+        private long windowStart;
+        private long windowBytes;
+        private long lastDownloaded = -1;
+        private boolean stalled;
+        private List<Long> samples;
+        private int phase = -1;
+        private long phaseStart;
+
+        Attempt(final long startTime, final String target) {
+            this.startTime = startTime;
+            this.target = target;
+        }
+
+        synchronized void onDownloadStarted(final Downloader downloader) {
+            this.downloader = downloader;
+            downloadStart = System.nanoTime();
+            windowStart = downloadStart;
+            samples = new ArrayList<>();
+            contentLength = downloader.getContentLength();
+            resumedBytes = downloader.getResumed();
+            lastDownloaded = downloader.getDownloaded();
+            timeToFirstByteMillis = downloader.getTimeToFirstByteMillis();
+        }
+
+        /**
+         * Accumulates progress into one second windows. A window without any progress is part of a
+         * stall, and consecutive ones count as a single stall.
+         */
+        synchronized void onProgress(final long downloaded) {
+            if (samples == null) {
+                return;
+            }
+            final long now = System.nanoTime();
+            windowBytes += downloaded - lastDownloaded;
+            lastDownloaded = downloaded;
+            final long elapsed = now - windowStart;
+            if (elapsed < SAMPLE_INTERVAL_NANOS) {
+                return;
+            }
+            if (windowBytes == 0) {
+                if (!stalled) {
+                    stalls++;
+                    stalled = true;
+                }
+                stallMillis += TimeUnit.NANOSECONDS.toMillis(elapsed);
+            } else {
+                stalled = false;
+            }
+            samples.add(windowBytes * SAMPLE_INTERVAL_NANOS / elapsed);
+            windowStart = now;
+            windowBytes = 0;
+        }
+
+        /**
+         * Completes the download metrics, also when the download failed or was cancelled.
+         */
+        synchronized void onDownloadFinished() {
+            if (samples == null) {
+                return;
+            }
+            onProgress(downloader.getDownloaded());
+            downloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downloadStart);
+            downloadedBytes = downloader.getDownloaded() - resumedBytes;
+            refetchedBytes = downloader.getRefetched();
+            if (!samples.isEmpty()) {
+                final long[] sorted = new long[samples.size()];
+                for (int i = 0; i < sorted.length; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                throughput[0] = percentile(sorted, 10);
+                throughput[1] = percentile(sorted, 50);
+                throughput[2] = percentile(sorted, 90);
+            }
+            samples = null;
+            downloader = null;
+        }
+
+        synchronized void onVerified(final long nanos) {
+            verifyMillis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        /**
+         * Tracks the update_engine phase, accumulating the time spent in each. A negative phase ends
+         * the current one.
+         */
+        synchronized void onPhase(final int newPhase) {
+            if (newPhase == phase) {
+                return;
+            }
+            final long now = System.nanoTime();
+            if (phase >= 0) {
+                phaseMillis[phase] = Math.max(phaseMillis[phase], 0) +
+                        TimeUnit.NANOSECONDS.toMillis(now - phaseStart);
+            }
+            phase = newPhase;
+            phaseStart = now;
+        }
+
+        synchronized void setResult(final String result) {
+            this.result = result;
+        }
+
+        synchronized void finish() {
+            onDownloadFinished();
+            onPhase(-1);
+        }
+
+        private static long percentile(final long[] sorted, final int percent) {
+            return sorted[Math.max(0, (sorted.length * percent + 99) / 100 - 1)];
+        }
+
+        synchronized void dump(final PrintWriter writer) {
+            writer.println(String.format(Locale.ROOT, "attempt at %tF %<tT for %s: %s", startTime, target, result));
+            if (contentLength != -1) {
+                writer.println("  package " + contentLength + " bytes, resumed " + resumedBytes +
+                        ", downloaded " + downloadedBytes + ", re-fetched " + refetchedBytes);
+                writer.println("  time to first byte " + timeToFirstByteMillis + " ms, download " +
+                        downloadMillis + " ms");
+                writer.println("  throughput p10 " + throughput[0] + " p50 " + throughput[1] +
+                        " p90 " + throughput[2] + " bytes/s, stalls " + stalls + " (" + stallMillis + " ms)");
+            }
+            if (verifyMillis != -1) {
+                writer.println("  verification " + verifyMillis + " ms");
+            }
+            if (phase != -1 || phaseMillis[PHASE_APPLY] != -1) {
+                final StringBuilder phases = new StringBuilder("  update_engine");
+                for (int i = 0; i < phaseMillis.length; i++) {
+                    phases.append(' ').append(PHASE_NAMES[i]).append(' ').append(phaseMillis[i]).append(" ms");
+                }
+                writer.println(phases);
+            }
+        }
+
+        private synchronized void write(final DataOutputStream output) throws IOException {
+            output.writeLong(startTime);
+            output.writeUTF(target);
+            output.writeUTF(result);
+            output.writeLong(contentLength);
+            output.writeLong(resumedBytes);
+            output.writeLong(refetchedBytes);
+            output.writeLong(downloadedBytes);
+            output.writeLong(timeToFirstByteMillis);
+            output.writeLong(downloadMillis);
+            for (final long value : throughput) {
+                output.writeLong(value);
+            }
+            output.writeInt(stalls);
+            output.writeLong(stallMillis);
+            output.writeLong(verifyMillis);
+            for (final long value : phaseMillis) {
+                output.writeLong(value);
+            }
+        }
+
+        private static Attempt read(final DataInputStream input) throws IOException {
+            final Attempt attempt = new Attempt(input.readLong(), input.readUTF());
+            attempt.result = input.readUTF();
+            attempt.contentLength = input.readLong();
+            attempt.resumedBytes = input.readLong();
+            attempt.refetchedBytes = input.readLong();
+            attempt.downloadedBytes = input.readLong();
+            attempt.timeToFirstByteMillis = input.readLong();
+            attempt.downloadMillis = input.readLong();
+            for (int i = 0; i < attempt.throughput.length; i++) {
+                attempt.throughput[i] = input.readLong();
+            }
+            attempt.stalls = input.readInt();
+            attempt.stallMillis = input.readLong();
+            attempt.verifyMillis = input.readLong();
+            for (int i = 0; i < attempt.phaseMillis.length; i++) {
+                attempt.phaseMillis[i] = input.readLong();
+            }
+            return attempt;
+        }
+    }
+
+    private final File file;
+
+    UpdateMetrics(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the recorded attempts, oldest first. A missing or unreadable history is empty.
+     */
+    synchronized List<Attempt> load() {
+        final List<Attempt> attempts = new ArrayList<>();
+        try (final DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (input.readInt() != VERSION) {
+                return attempts;
+            }
+            for (int count = input.readInt(); count > 0; count--) {
+                attempts.add(Attempt.read(input));
+            }
+        } catch (IOException e) {
+            attempts.clear();
+        }
+        return attempts;
+    }
+
+    /**
+     * Appends an attempt to the history, dropping the oldest ones beyond MAX_ATTEMPTS.
+     */
+    synchronized void add(final Attempt attempt) throws IOException {
+        final List<Attempt> attempts = load();
+        attempts.add(attempt);
+        final List<Attempt> kept = attempts.subList(Math.max(0, attempts.size() - MAX_ATTEMPTS), attempts.size());
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp))) {
+            output.writeInt(VERSION);
+            output.writeInt(kept.size());
+            for (final Attempt entry : kept) {
+                entry.write(output);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to write " + file);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package app.seamlessupdate.client;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The update state shown by the UI, published by {@link Service} through its binder.
+ *
+ * Fields are written by the service threads without locking and read by the UI at most once per
+ * frame. A change only notifies the listener if it has seen the previous one, so progress reported
+ * at any rate costs the UI a single frame callback per frame and nothing is allocated per update.
+ */
+public final class UpdateState {
+    /**
+     * Kinds of failure the UI explains differently.
+     */
+    public enum Failure {
+        Generic,
+        InsufficientSpace
+    }
+
+    /**
+     * The resolution of progress bars, which take int values while byte counts may exceed them.
+     */
+    public static final int PROGRESS_MAX = 1000;
+
+    public interface Listener {
+        /**
+         * Called from any thread after a change, and not again until {@link #acknowledge}.
+         */
+        void onStateChanged();
+    }
+
+    private volatile Settings.UpdateStatus status;
+    private volatile String availableVersion;
+    private volatile long availableDate;
+    private volatile int availableUpdateCount;
+    private volatile long downloaded;
+    private volatile long downloadSize;
+    private volatile int installProgress;
+    private volatile int installMax;
+    private volatile int failureCount;
+    private volatile Failure failure = Failure.Generic;
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile Listener listener;
+
+    /**
+     * Returns value as a fraction of max in units of 1 / PROGRESS_MAX, or -1 if max is not known.
+     */
+    public static int scaleProgress(final long value, final long max) {
+        return max > 0 ? (int) (Math.max(0, Math.min(value, max)) * PROGRESS_MAX / max) : -1;
+    }
+
+    UpdateState(final Settings.UpdateStatus status, final String availableVersion, final long availableDate) {
+        this.status = status;
+        this.availableVersion = availableVersion;
+        this.availableDate = availableDate;
+    }
+
+    /**
+     * Sets the listener, or removes it if null. The listener is called right away so that it
+     * renders the current state.
+     */
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+        pending.set(false);
+        notifyChanged();
+    }
+
+    /**
+     * Marks the change as seen, before reading the state so that a concurrent change is not lost.
+     */
+    public void acknowledge() {
+        pending.set(false);
+    }
+
+    public Settings.UpdateStatus getStatus() {
+        return status;
+    }
+
+    public String getAvailableVersion() {
+        return availableVersion;
+    }
+
+    public long getAvailableDate() {
+        return availableDate;
+    }
+
+    /**
+     * Returns the number of times an update was found, which tells the UI to reload its details.
+     */
+    public int getAvailableUpdateCount() {
+        return availableUpdateCount;
+    }
+
+    public long getDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * Returns the package size, or a non-positive value if it is not known yet.
+     */
+    public long getDownloadSize() {
+        return downloadSize;
+    }
+
+    public int getInstallProgress() {
+        return installProgress;
+    }
+
+    public int getInstallMax() {
+        return installMax;
+    }
+
+    /**
+     * Returns the number of failed attempts, which tells the UI to report a new failure.
+     */
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Returns the kind of the last failure.
+     */
+    public Failure getFailure() {
+        return failure;
+    }
+
+    void setStatus(final Settings.UpdateStatus status) {
+        if (status != Settings.UpdateStatus.Downloading) {
+            downloadSize = 0;
+        }
+        if (status != Settings.UpdateStatus.Installing) {
+            installMax = 0;
+        }
+        this.status = status;
+        notifyChanged();
+    }
+
+    void setAvailableUpdate(final String version, final long date) {
+        availableVersion = version;
+        availableDate = date;
+        availableUpdateCount++;
+        setStatus(Settings.UpdateStatus.Available);
+    }
+
+    void setDownloadProgress(final long downloaded, final long size) {
+        this.downloaded = downloaded;
+        downloadSize = size;
+        notifyChanged();
+    }
+
+    void setInstallProgress(final int progress, final int max) {
+        installProgress = progress;
+        installMax = max;
+        notifyChanged();
+    }
+
+    void setFailed(final Failure failure) {
+        this.failure = failure;
+        failureCount++;
+        setStatus(Settings.UpdateStatus.NotAvailable);
+    }
+
+    private void notifyChanged() {
+        final Listener current = listener;
+        if (current != null && pending.compareAndSet(false, true)) {
+            current.onStateChanged();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package app.seamlessupdate.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Central directory of a zip file, read through positional reads. Entries can be located without
+ * touching the rest of the file, which does not even have to be present yet.
+ */
+final class ZipDirectory {
+    /**
+     * Random access to the bytes of a zip file.
+     */
+    interface Source {
+        /**
+         * Fills the remaining space in buffer with the bytes at position.
+         */
+        void read(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(final String name, final int method, final long compressedSize, final long size,
+                final long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_LENGTH = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_LENGTH = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+    private static final int MAX_DIRECTORY_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_ENTRY_LENGTH = 1024 * 1024;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private final Source source;
+    private final Map<String, Entry> entries;
+
+    private ZipDirectory(final Source source, final Map<String, Entry> entries) {
+        this.source = source;
+        this.entries = entries;
+    }
+
+    static Source newSource(final FileChannel channel) {
+        return (final ByteBuffer buffer, long position) -> {
+            while (buffer.hasRemaining()) {
+                final int bytesRead = channel.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new EOFException("unexpected end of zip file");
+                }
+                position += bytesRead;
+            }
+        };
+    }
+
+    /**
+     * Reads the central directory of the zip file of the given length. Only the end of the file
+     * and the directory itself are read.
+     */
+    static ZipDirectory read(final Source source, final long length) throws IOException {
+        final int tailLength = (int) Math.min(length, EOCD_LENGTH + MAX_COMMENT_LENGTH);
+        final ByteBuffer tail = read(source, length - tailLength, tailLength);
+        int eocd = -1;
+        for (int i = tailLength - EOCD_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_LENGTH + (tail.getShort(i + 20) & 0xffff) == tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new IOException("zip end of central directory not found");
+        }
+
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long directoryLength = tail.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || directoryLength == 0xffffffffL || directoryOffset == 0xffffffffL) {
+            final int locator = eocd - ZIP64_LOCATOR_LENGTH;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new IOException("zip64 end of central directory locator not found");
+            }
+            final long zip64Offset = tail.getLong(locator + 8);
+            if (zip64Offset < 0 || zip64Offset > length - ZIP64_EOCD_LENGTH) {
+                throw new IOException("invalid zip64 end of central directory locator");
+            }
+            final ByteBuffer zip64 = read(source, zip64Offset, ZIP64_EOCD_LENGTH);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("zip64 end of central directory not found");
+            }
+            count = zip64.getLong(32);
+            directoryLength = zip64.getLong(40);
+            directoryOffset = zip64.getLong(48);
+        }
+        if (directoryLength < 0 || directoryLength > MAX_DIRECTORY_LENGTH || directoryOffset < 0 ||
+                directoryOffset > length - directoryLength) {
+            throw new IOException("invalid zip central directory");
+        }
+
+        // the directory of a package usually lies within the tail, sparing a remote source a request
+        final long tailOffset = length - tailLength;
+        final ByteBuffer directory;
+        if (directoryOffset >= tailOffset) {
+            tail.position((int) (directoryOffset - tailOffset));
+            tail.limit(tail.position() + (int) directoryLength);
+            directory = tail.slice().order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            directory = read(source, directoryOffset, (int) directoryLength);
+        }
+        final Map<String, Entry> entries = new HashMap<>();
+        for (long i = 0; i < count; i++) {
+            if (directory.remaining() < CENTRAL_HEADER_LENGTH ||
+                    directory.getInt(directory.position()) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("invalid zip central directory entry");
+            }
+            final int header = directory.position();
+            final int method = directory.getShort(header + 10) & 0xffff;
+            long compressedSize = directory.getInt(header + 20) & 0xffffffffL;
+            long size = directory.getInt(header + 24) & 0xffffffffL;
+            final int nameLength = directory.getShort(header + 28) & 0xffff;
+            final int extraLength = directory.getShort(header + 30) & 0xffff;
+            final int commentLength = directory.getShort(header + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(header + 42) & 0xffffffffL;
+            final int name = header + CENTRAL_HEADER_LENGTH;
+            final int extra = name + nameLength;
+            final int next = extra + extraLength + commentLength;
+            if (next > directory.limit()) {
+                throw new IOException("invalid zip central directory entry");
+            }
+
+            if (size == 0xffffffffL || compressedSize == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+                int field = findExtra(directory, extra, extraLength, ZIP64_EXTRA_ID);
+                if (field == -1) {
+                    throw new IOException("zip64 extra field missing");
+                }
+                final int fieldEnd = field + (directory.getShort(field - 2) & 0xffff);
+                if (size == 0xffffffffL) {
+                    size = getZip64Value(directory, field, fieldEnd);
+                    field += 8;
+                }
+                if (compressedSize == 0xffffffffL) {
+                    compressedSize = getZip64Value(directory, field, fieldEnd);
+                    field += 8;
+                }
+                if (localHeaderOffset == 0xffffffffL) {
+                    localHeaderOffset = getZip64Value(directory, field, fieldEnd);
+                }
+            }
+
+            final byte[] nameBytes = new byte[nameLength];
+            directory.position(name);
+            directory.get(nameBytes);
+            final String entryName = new String(nameBytes, StandardCharsets.UTF_8);
+            entries.put(entryName, new Entry(entryName, method, compressedSize, size, localHeaderOffset));
+            directory.position(next);
+        }
+        return new ZipDirectory(source, entries);
+    }
+
+    private static int findExtra(final ByteBuffer buffer, int position, final int length, final int id)
+            throws IOException {
+        final int end = position + length;
+        while (position + 4 <= end) {
+            final int fieldId = buffer.getShort(position) & 0xffff;
+            final int fieldLength = buffer.getShort(position + 2) & 0xffff;
+            if (position + 4 + fieldLength > end) {
+                throw new IOException("invalid zip extra field");
+            }
+            if (fieldId == id) {
+                return position + 4;
+            }
+            position += 4 + fieldLength;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value at field within a zip64 extra field ending at fieldEnd, rejecting values
+     * that reach past its end or are negative.
+     */
+    private static long getZip64Value(final ByteBuffer buffer, final int field, final int fieldEnd)
+            throws IOException {
+        if (field + 8 > fieldEnd) {
+            throw new IOException("invalid zip64 extra field");
+        }
+        final long value = buffer.getLong(field);
+        if (value < 0) {
+            throw new IOException("invalid zip64 extra field");
+        }
+        return value;
+    }
+
+    private static ByteBuffer read(final Source source, final long position, final int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        source.read(buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    Entry getEntry(final String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns the offset of the entry data, following its local header.
+     */
+    long getDataOffset(final Entry entry) throws IOException {
+        final ByteBuffer header = read(source, entry.localHeaderOffset, LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("invalid zip local header for " + entry.name);
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_LENGTH +
+                (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    }
+
+    /**
+     * Reads the uncompressed contents of a small entry, such as the package metadata.
+     */
+    byte[] read(final Entry entry) throws IOException {
+        if (entry.size > MAX_ENTRY_LENGTH || entry.compressedSize > MAX_ENTRY_LENGTH) {
+            throw new IOException("zip entry too large: " + entry.name);
+        }
+        final ByteBuffer data = read(source, getDataOffset(entry), (int) entry.compressedSize);
+        if (entry.method == METHOD_STORED) {
+            if (entry.size != entry.compressedSize) {
+                throw new IOException("invalid size for stored zip entry " + entry.name);
+            }
+            return data.array();
+        }
+        if (entry.method != METHOD_DEFLATED) {
+            throw new IOException("unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            final byte[] contents = new byte[(int) entry.size];
+            int length = 0;
+            while (length < contents.length && !inflater.finished()) {
+                final int inflated = inflater.inflate(contents, length, contents.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != contents.length) {
+                throw new IOException("truncated zip entry " + entry.name);
+            }
+            return contents;
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed data for " + entry.name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package app.seamlessupdate.client.misc;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Locale dependent formatting behind {@link StringGenerator}, kept free of Android classes so that
+ * it can be benchmarked on the host JVM.
+ */
+public final class LocaleFormat {
+
+    private LocaleFormat() {
+    }
+
+    public static String formatTime(Locale locale, long unixTimestamp, boolean utc) {
+        DateFormat f = DateFormat.getTimeInstance(DateFormat.SHORT, locale);
+        return format(f, unixTimestamp, utc);
+    }
+
+    public static String formatDate(Locale locale, int dateFormat, long unixTimestamp, boolean utc) {
+        DateFormat f = DateFormat.getDateInstance(dateFormat, locale);
+        return format(f, unixTimestamp, utc);
+    }
+
+    public static String formatDateTime(Locale locale, long unixTimestamp) {
+        DateFormat f = DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.SHORT, locale);
+        return format(f, unixTimestamp, false);
+    }
+
+    public static String formatMegabytes(Locale locale, long bytes) {
+        return String.format(locale, "%.0f", bytes / 1024.f / 1024.f);
+    }
+
+    private static String format(DateFormat f, long unixTimestamp, boolean utc) {
+        if (utc) {
+            f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+        Date date = new Date(unixTimestamp * 1000);
+        return f.format(date);
+    }
+}
@@ -20,10 +20,7 @@ import android.content.res.Resources;
 
 import app.seamlessupdate.client.R;
 
-import java.text.DateFormat;
-import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
 
 public final class StringGenerator {
 
@@ -31,40 +28,27 @@ public final class StringGenerator {
     }
 
     public static String getTimeLocalized(Context context, long unixTimestamp) {
-        DateFormat f = DateFormat.getTimeInstance(DateFormat.SHORT, getCurrentLocale(context));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return LocaleFormat.formatTime(getCurrentLocale(context), unixTimestamp, false);
     }
 
     public static String getTimeLocalizedUTC(Context context, long unixTimestamp) {
-        DateFormat f = DateFormat.getTimeInstance(DateFormat.SHORT, getCurrentLocale(context));
-        f.setTimeZone(TimeZone.getTimeZone("UTC"));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return LocaleFormat.formatTime(getCurrentLocale(context), unixTimestamp, true);
     }
 
     public static String getDateLocalized(Context context, int dateFormat, long unixTimestamp) {
-        DateFormat f = DateFormat.getDateInstance(dateFormat, getCurrentLocale(context));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return LocaleFormat.formatDate(getCurrentLocale(context), dateFormat, unixTimestamp, false);
     }
 
     public static String getDateLocalizedUTC(Context context, int dateFormat, long unixTimestamp) {
-        DateFormat f = DateFormat.getDateInstance(dateFormat, getCurrentLocale(context));
-        f.setTimeZone(TimeZone.getTimeZone("UTC"));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return LocaleFormat.formatDate(getCurrentLocale(context), dateFormat, unixTimestamp, true);
     }
 
     public static String getDateTimeLocalized(Context context, long unixTimestamp) {
-        DateFormat f = DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.SHORT,
-                getCurrentLocale(context));
-        Date date = new Date(unixTimestamp * 1000);
-        return f.format(date);
+        return LocaleFormat.formatDateTime(getCurrentLocale(context), unixTimestamp);
     }
 
     public static String bytesToMegabytes(Context context, long bytes) {
-        return String.format(getCurrentLocale(context), "%.0f", bytes / 1024.f / 1024.f);
+        return LocaleFormat.formatMegabytes(getCurrentLocale(context), bytes);
     }
 
     public static String formatETA(Context context, long millis) {
@@ -2,14 +2,15 @@ package app.seamlessupdate.client.ui;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -22,18 +23,44 @@ import com.google.android.material.snackbar.Snackbar;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 
-import app.seamlessupdate.client.BroadcastHandler;
 import app.seamlessupdate.client.PeriodicJob;
 import app.seamlessupdate.client.R;
 import app.seamlessupdate.client.RebootReceiver;
 import app.seamlessupdate.client.Service;
 import app.seamlessupdate.client.Settings;
+import app.seamlessupdate.client.UpdateState;
 import app.seamlessupdate.client.misc.StringGenerator;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
 
-    private UpdateInfoReceiver updateInfoReceiver;
+    private final NumberFormat percentFormat = NumberFormat.getPercentInstance();
+    private final Choreographer.FrameCallback renderCallback = frameTimeNanos -> render();
+    private Choreographer choreographer;
+    private UpdateState state;
+    private final UpdateState.Listener stateListener = () -> choreographer.postFrameCallback(renderCallback);
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            state = ((Service.LocalBinder) binder).getState();
+            renderedStatus = null;
+            renderedUpdateCount = -1;
+            renderedFailureCount = state.getFailureCount();
+            state.setListener(stateListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            state = null;
+        }
+    };
+
+    private Settings.UpdateStatus renderedStatus;
+    private int renderedUpdateCount;
+    private int renderedFailureCount;
+    private long renderedProgress = -1;
+    private long renderedMax = -1;
+
     private TextView tvBuildVersion;
     private TextView tvBuildDate;
     private TextView tvBuildDescription;
@@ -55,55 +82,25 @@ public class MainActivity extends AppCompatActivity {
         getSupportActionBar().setDisplayShowTitleEnabled(false);
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
+        choreographer = Choreographer.getInstance();
         prepareUi();
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-
-        updateInfoReceiver = new UpdateInfoReceiver();
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BroadcastHandler.NOTIFY_UPDATE_INFO);
-        intentFilter.addAction(BroadcastHandler.NOTIFY_UPDATE_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(BroadcastHandler.NOTIFY_UPDATE_INSTALL_PROGRESS);
-        intentFilter.addAction(BroadcastHandler.NOTIFY_UPDATE_NOT_AVAILABLE);
-        intentFilter.addAction(BroadcastHandler.NOTIFY_UPDATE_FAILED);
-        intentFilter.addAction(BroadcastHandler.NOTIFY_UPDATE_DONE);
-        LocalBroadcastManager.getInstance(this).registerReceiver(updateInfoReceiver, intentFilter);
+        bindService(new Intent(this, Service.class), serviceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onStop() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(updateInfoReceiver);
-        super.onStop();
-    }
-
-    @Override
-    protected void onResume() {
-        super.onResume();
-        checkForUpdates();
-
-        switch (Settings.getUpdateStatus(this)) {
-            case NotAvailable:
-                prepareUiUpdateNotAvailable();
-                break;
-            case Available:
-                prepareUiUpdateAvailable();
-                break;
-            case Downloading:
-                prepareUiUpdateDownloading();
-                break;
-            case Installing:
-                prepareUiUpdateInstalling();
-                break;
-            case UpdateDone:
-                prepareUiUpdateDone();
-                break;
-        }
-        if (Settings.getIsWaitingForReboot(this)) {
-            prepareUiUpdateDone();
+        if (state != null) {
+            state.setListener(null);
+            state = null;
         }
+        choreographer.removeFrameCallback(renderCallback);
+        unbindService(serviceConnection);
+        super.onStop();
     }
 
     @Override
@@ -177,7 +174,7 @@ public class MainActivity extends AppCompatActivity {
         btnUpdateAction.setOnClickListener(v -> {
             startService(new Intent(Service.SERVICE_ACTION_INSTALL, null, this, Service.class));
             prepareUiUpdateDownloading();
-            pbProgressBar.setIndeterminate(true);
+            renderedStatus = Settings.UpdateStatus.Downloading;
         });
 
         btnReboot = findViewById(R.id.reboot_button);
@@ -188,7 +185,6 @@ public class MainActivity extends AppCompatActivity {
         checkForUpdates();
 
         updateLastCheckedString();
-        updateAvailableBuildInfo();
     }
 
     private void updateLastCheckedString() {
@@ -201,10 +197,96 @@ public class MainActivity extends AppCompatActivity {
         headerLastCheck.setText(lastCheckString);
     }
 
-    private void updateAvailableBuildInfo() {
-        tvBuildVersion.setText(Settings.getAvailableUpdateVersion(this));
+    /**
+     * Renders the latest state of the service, called at most once per frame after a change.
+     * Views are only touched for the parts that changed since the last frame.
+     */
+    private void render() {
+        final UpdateState current = state;
+        if (current == null) {
+            return;
+        }
+        current.acknowledge();
+
+        if (current.getAvailableUpdateCount() != renderedUpdateCount) {
+            renderedUpdateCount = current.getAvailableUpdateCount();
+            updateAvailableBuildInfo(current);
+        }
+
+        final Settings.UpdateStatus status = current.getStatus();
+        if (status != renderedStatus) {
+            renderedStatus = status;
+            renderedProgress = -1;
+            renderedMax = -1;
+            switch (status) {
+                case NotAvailable:
+                    prepareUiUpdateNotAvailable();
+                    break;
+                case Available:
+                    prepareUiUpdateAvailable();
+                    break;
+                case Downloading:
+                    prepareUiUpdateDownloading();
+                    break;
+                case Installing:
+                    prepareUiUpdateInstalling();
+                    break;
+                case UpdateDone:
+                    prepareUiUpdateDone();
+                    break;
+            }
+        }
+        if (status == Settings.UpdateStatus.Downloading) {
+            renderDownloadProgress(current.getDownloaded(), current.getDownloadSize());
+        } else if (status == Settings.UpdateStatus.Installing) {
+            renderInstallProgress(current.getInstallProgress(), current.getInstallMax());
+        }
+
+        if (current.getFailureCount() != renderedFailureCount) {
+            renderedFailureCount = current.getFailureCount();
+            if (current.getFailure() == UpdateState.Failure.InsufficientSpace) {
+                showSnackbar(R.string.update_failed_storage, Snackbar.LENGTH_LONG);
+            } else {
+                showSnackbar(R.string.update_failed, Snackbar.LENGTH_SHORT);
+            }
+        }
+    }
+
+    private void renderDownloadProgress(long downloaded, long buildSize) {
+        // the label is only rebuilt when the scaled progress moves, not for every byte count
+        final int progress = UpdateState.scaleProgress(downloaded, buildSize);
+        if (progress == -1 || (progress == renderedProgress && buildSize == renderedMax)) {
+            return;
+        }
+        renderedProgress = progress;
+        renderedMax = buildSize;
+
+        pbProgressBar.setIndeterminate(false);
+        pbProgressBar.setMax(UpdateState.PROGRESS_MAX);
+        pbProgressBar.setProgress(progress);
+        tvProgressText.setText(getString(R.string.update_download_progress,
+                StringGenerator.bytesToMegabytes(this, downloaded),
+                StringGenerator.bytesToMegabytes(this, buildSize),
+                percentFormat.format((float) progress / UpdateState.PROGRESS_MAX)));
+    }
+
+    private void renderInstallProgress(int progress, int total) {
+        if (total <= 0 || (progress == renderedProgress && total == renderedMax)) {
+            return;
+        }
+        renderedProgress = progress;
+        renderedMax = total;
+
+        pbProgressBar.setIndeterminate(false);
+        pbProgressBar.setMax(total);
+        pbProgressBar.setProgress(progress);
+        tvProgressText.setText(getString(R.string.update_install_progress, progress + " %"));
+    }
+
+    private void updateAvailableBuildInfo(UpdateState current) {
+        tvBuildVersion.setText(current.getAvailableVersion());
         tvBuildDate.setText(StringGenerator.getDateLocalizedUTC(this, DateFormat.LONG,
-                Settings.getAvailableUpdateDate(this)));
+                current.getAvailableDate()));
         tvBuildDescription.setText(Settings.getAvailableUpdateDescription(this));
     }
 
@@ -252,68 +334,4 @@ public class MainActivity extends AppCompatActivity {
         btnUpdateAction.setEnabled(false);
         pbProgressBar.setIndeterminate(true);
     }
-
-    private class UpdateInfoReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            switch (intent.getAction()) {
-                case BroadcastHandler.NOTIFY_UPDATE_INFO:
-                    prepareUiUpdateAvailable();
-                    onReceiveUpdateInfo(context, intent);
-                    break;
-                case BroadcastHandler.NOTIFY_UPDATE_DOWNLOAD_PROGRESS:
-                    prepareUiUpdateDownloading();
-                    onReceiveUpdateDownloadProgress(context, intent);
-                    break;
-                case BroadcastHandler.NOTIFY_UPDATE_INSTALL_PROGRESS:
-                    prepareUiUpdateInstalling();
-                    onReceiveUpdateInstallProgress(context, intent);
-                    break;
-                case BroadcastHandler.NOTIFY_UPDATE_DONE:
-                    prepareUiUpdateDone();
-                    break;
-                case BroadcastHandler.NOTIFY_UPDATE_NOT_AVAILABLE:
-                    prepareUiUpdateNotAvailable();
-                    break;
-                case BroadcastHandler.NOTIFY_UPDATE_FAILED:
-                    prepareUiUpdateNotAvailable();
-                    showSnackbar(R.string.update_failed, Snackbar.LENGTH_SHORT);
-                    break;
-            }
-        }
-
-        private void onReceiveUpdateDownloadProgress(Context context, Intent intent) {
-            long downloaded = intent.getLongExtra("updateProgress", 0);
-            long buildSize = intent.getLongExtra("buildSize", 1);
-
-            pbProgressBar.setIndeterminate(false);
-            pbProgressBar.setMax((int) buildSize);
-            pbProgressBar.setProgress((int) downloaded);
-            tvProgressText.setText(getString(R.string.update_download_progress,
-                    StringGenerator.bytesToMegabytes(context, downloaded),
-                    StringGenerator.bytesToMegabytes(context, buildSize),
-                    NumberFormat.getPercentInstance().format((float) downloaded / buildSize)));
-        }
-
-        private void onReceiveUpdateInstallProgress(Context context, Intent intent) {
-            long progress = intent.getLongExtra("installProgress", 0);
-            long total = intent.getLongExtra("installMax", 1);
-
-            pbProgressBar.setIndeterminate(false);
-            pbProgressBar.setMax((int) total);
-            pbProgressBar.setProgress((int) progress);
-            tvProgressText.setText(getString(R.string.update_install_progress, progress + " %"));
-        }
-
-        private void onReceiveUpdateInfo(Context context, Intent intent) {
-            String buildVersion = intent.getStringExtra("buildVersion");
-            long buildDate = intent.getLongExtra("buildDate", -1);
-            String buildDescription = intent.getStringExtra("buildDescription");
-
-            tvBuildVersion.setText(buildVersion);
-            String buildDateString = StringGenerator.getDateLocalizedUTC(context, DateFormat.LONG, buildDate);
-            tvBuildDate.setText(buildDateString);
-            tvBuildDescription.setText(buildDescription);
-        }
-    }
 }